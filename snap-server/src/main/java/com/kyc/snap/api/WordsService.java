@@ -3,6 +3,7 @@ package com.kyc.snap.api;
 import java.util.List;
 import java.util.Set;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.kyc.snap.crossword.Crossword;
 import com.kyc.snap.crossword.CrosswordClues;
 import com.kyc.snap.crossword.CrosswordFormula;
@@ -15,6 +16,7 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
@@ -25,8 +27,18 @@ public interface WordsService {
     @Path("words/search")
     SolveWordSearchResponse solveWordSearch(SolveWordSearchRequest request);
 
+    /**
+     * dictionary optionally selects the words to search for when there is no word bank: "english" (the default),
+     * "wikipedia" (Wikipedia article titles) or "cmu" (words in the CMU Pronouncing Dictionary). If parallel is set,
+     * the grid is searched on multiple threads.
+     */
     record SolveWordSearchRequest(
-            List<String> grid, Set<String> wordBank, boolean boggle, boolean fuzzy) {}
+            List<String> grid,
+            Set<String> wordBank,
+            boolean boggle,
+            boolean fuzzy,
+            String dictionary,
+            boolean parallel) {}
 
     record SolveWordSearchResponse(List<WordSearchSolver.Result> results, boolean hitLimit) {}
 
@@ -58,15 +70,87 @@ public interface WordsService {
     @Path("words/pregex")
     PregexResponse pregex(PregexRequest request);
 
-    record PregexRequest(List<String> parts, boolean canRearrange, List<Integer> wordLengths) {}
+    /**
+     * beamWidth, maxNumResults and maxStatesPerContext are optional, and trade off accuracy for latency (see
+     * {@link GenericSolver.SearchParameters}). If parallel is set, the query is solved on multiple threads. If
+     * bestFirst is set, the exact best results are found with best-first search instead of beam search.
+     * timeoutMillis optionally shortens the time limit, after which the best results so far are returned. model
+     * optionally selects the language model that scores results: "english" (the default), which prefers dictionary
+     * words, or "characters", a character n-gram model that also allows words that aren't in the dictionary.
+     */
+    record PregexRequest(
+            List<String> parts,
+            boolean canRearrange,
+            List<Integer> wordLengths,
+            Integer beamWidth,
+            Integer maxNumResults,
+            boolean parallel,
+            Integer maxStatesPerContext,
+            boolean bestFirst,
+            Integer timeoutMillis,
+            String model) {}
+
+    /**
+     * @param hitLimit whether the search was cut short, so that better results may exist
+     */
+    record PregexResponse(List<GenericSolver.Result> results, boolean hitLimit) {}
+
+    /**
+     * Same as words/pregex, but streams newline-delimited JSON PregexEvents as soon as each result is found, followed by
+     * a final "done" event with all results.
+     */
+    @POST
+    @Path("words/pregex/stream")
+    @Produces("application/x-ndjson")
+    StreamingOutput pregexStream(PregexRequest request);
+
+    /**
+     * @param type     "result" when a result enters the best results found so far, "done" when the search is finished,
+     *                 or "error" if the query is invalid
+     * @param result   the new result, for a "result" event
+     * @param rank     the rank (starting from 1) of the new result among the best results so far, for a "result" event
+     * @param results  all results, for a "done" event
+     * @param hitLimit whether the search was cut short, for a "done" event
+     * @param error    the error message, for an "error" event
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record PregexEvent(
+            String type,
+            GenericSolver.Result result,
+            Integer rank,
+            List<GenericSolver.Result> results,
+            Boolean hitLimit,
+            String error) {}
+
+    /**
+     * Solves many pregex queries concurrently, each with its own time limit, and returns their results in the same
+     * order as the queries.
+     */
+    @POST
+    @Path("words/pregex/batch")
+    PregexBatchResponse pregexBatch(PregexBatchRequest request);
+
+    record PregexBatchRequest(List<PregexRequest> queries) {}
+
+    record PregexBatchResponse(List<PregexBatchResult> responses) {}
 
-    record PregexResponse(List<GenericSolver.Result> results) {}
+    /**
+     * @param results  the results, if the query succeeded
+     * @param hitLimit whether the search was cut short
+     * @param error    the error message, if the query is invalid or wasn't solved in time
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record PregexBatchResult(List<GenericSolver.Result> results, Boolean hitLimit, String error) {}
 
     @POST
     @Path("words/find")
     FindWordsResponse findWords(FindWordsRequest request);
 
+    /**
+     * dictionary optionally selects the words to search, as in {@link SolveWordSearchRequest}.
+     */
     record FindWordsRequest(
+            String dictionary,
             Integer minLength,
             Integer maxLength,
             Long minFreq,
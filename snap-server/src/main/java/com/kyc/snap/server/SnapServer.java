@@ -1,24 +1,40 @@
 package com.kyc.snap.server;
 
+import java.io.File;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 import org.glassfish.jersey.media.multipart.MultiPartFeature;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.kyc.snap.crossword.CrosswordParser;
 import com.kyc.snap.google.GoogleAPIManager;
 import com.kyc.snap.grid.GridParser;
 import com.kyc.snap.opencv.OpenCvManager;
+import com.kyc.snap.solver.CharacterModel;
 import com.kyc.snap.solver.EnglishModel;
+import com.kyc.snap.solver.PregexResultCache;
 import com.kyc.snap.solver.PregexSolver;
 import com.kyc.snap.store.FileStore;
+import com.kyc.snap.words.CustomDictionary;
+import com.kyc.snap.words.DictionaryRegistry;
 import com.kyc.snap.words.EnglishDictionary;
+import com.kyc.snap.words.PhoneticsUtil;
+import com.kyc.snap.words.WikipediaTitlesDictionary;
 import com.kyc.snap.words.WordSearchSolver;
 
 import io.dropwizard.Application;
 import io.dropwizard.Configuration;
 import io.dropwizard.assets.AssetsBundle;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.servlets.assets.AssetServlet;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
@@ -26,6 +42,14 @@ import javax.ws.rs.container.ContainerResponseFilter;
 
 public class SnapServer extends Application<Configuration> {
 
+    public static final String PREGEX_RESULT_CACHE_FILE = "./data/pregex-result-cache.json";
+    public static final long ENGLISH_MODEL_CACHE_SIZE = 200000;
+    /**
+     * The dictionaries that are loaded before serving requests. The others are loaded on first use, since e.g.
+     * compiling the Wikipedia titles when they change takes a lot of time and heap.
+     */
+    public static final Set<String> EAGER_DICTIONARIES = Set.of(DictionaryRegistry.ENGLISH);
+
     public static void main(String[] args) throws Exception {
         new SnapServer().run("server");
     }
@@ -49,16 +73,72 @@ public class SnapServer extends Application<Configuration> {
         GridParser gridParser = new GridParser(openCv);
         CrosswordParser crosswordParser = new CrosswordParser();
         EnglishDictionary dictionary = new EnglishDictionary();
-        WordSearchSolver wordSearchSolver = new WordSearchSolver();
-        PregexSolver pregexSolver = new PregexSolver(new EnglishModel(dictionary));
+        DictionaryRegistry dictionaries = new DictionaryRegistry(Map.of(
+                DictionaryRegistry.ENGLISH, () -> dictionary,
+                DictionaryRegistry.WIKIPEDIA_TITLES, WikipediaTitlesDictionary::new,
+                DictionaryRegistry.PHONETIC_WORDS, () -> new CustomDictionary(PhoneticsUtil.getAllWords().keySet())));
+        // The tries of named dictionaries may be larger than the cache of word bank tries, so they're never evicted
+        WordSearchSolver wordSearchSolver = new WordSearchSolver(dictionaries::isNamed);
+        PregexResultCache pregexResultCache =
+                new PregexResultCache(10000, Duration.ofDays(1), new File(PREGEX_RESULT_CACHE_FILE));
+        PregexResultCache characterPregexResultCache = new PregexResultCache(10000, Duration.ofDays(1), null);
+        EnglishModel englishModel = new EnglishModel(dictionary, ENGLISH_MODEL_CACHE_SIZE);
+        Map<String, PregexSolver> pregexSolvers = Map.of(
+                WordsResource.DEFAULT_PREGEX_MODEL, new PregexSolver(englishModel, pregexResultCache),
+                "characters", new PregexSolver(CharacterModel.ofEnglish(dictionary, 5), characterPregexResultCache));
         FileStore store = new FileStore();
 
         environment.jersey().setUrlPattern("/api/*");
 
         environment.jersey().register(new MultiPartFeature());
-        environment.jersey().register(new WordsResource(wordSearchSolver, crosswordParser, pregexSolver, dictionary));
+        // Batches of pregex queries share this pool, so that a large batch can't use more than these threads
+        int numPregexThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pregexExecutor = environment.lifecycle().executorService("pregex-batch-%d")
+                .minThreads(numPregexThreads)
+                .maxThreads(numPregexThreads)
+                .build();
+        // Streamed events are serialized the same way as other responses
+        environment.jersey().register(new WordsResource(
+                wordSearchSolver,
+                crosswordParser,
+                pregexSolvers,
+                pregexExecutor,
+                dictionaries,
+                environment.getObjectMapper()));
         environment.jersey().register(new FileResource(store));
         environment.jersey().register(new DocumentResource(store, googleApi, gridParser, crosswordParser));
+
+        // Keep the most used pregex results across restarts, and load dictionaries and the word search trie before
+        // serving requests
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void start() {
+                pregexResultCache.load();
+                dictionaries.warmUp(EAGER_DICTIONARIES);
+                wordSearchSolver.warmUp(dictionary);
+            }
+
+            @Override
+            public void stop() {
+                pregexResultCache.save(1000);
+            }
+        });
+
+        registerCacheMetrics(environment.metrics(), "pregex.transitionCache", PregexSolver::transitionCacheStats);
+        registerCacheMetrics(environment.metrics(), "pregex.englishModelCache", englishModel::cacheStats);
+        registerCacheMetrics(environment.metrics(), "pregex.resultCache", pregexResultCache::stats);
+        registerCacheMetrics(
+                environment.metrics(), "pregex.characterResultCache", characterPregexResultCache::stats);
+    }
+
+    private static void registerCacheMetrics(MetricRegistry metrics, String name, Supplier<CacheStats> stats) {
+        metrics.register(MetricRegistry.name(name, "hits"), (Gauge<Long>) () -> stats.get().hitCount());
+        metrics.register(MetricRegistry.name(name, "misses"), (Gauge<Long>) () -> stats.get().missCount());
+        metrics.register(MetricRegistry.name(name, "hitRate"), (Gauge<Double>) () -> stats.get().hitRate());
+        metrics.register(MetricRegistry.name(name, "evictions"), (Gauge<Long>) () -> stats.get().evictionCount());
+        metrics.register(
+                MetricRegistry.name(name, "averageLoadMillis"),
+                (Gauge<Double>) () -> stats.get().averageLoadPenalty() / 1e6);
     }
 
     static class SinglePageAppAssetsBundle extends AssetsBundle {
@@ -1,28 +1,85 @@
 package com.kyc.snap.server;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.kyc.snap.api.WordsService;
 import com.kyc.snap.crossword.Crossword;
 import com.kyc.snap.crossword.CrosswordClues;
 import com.kyc.snap.crossword.CrosswordFormula;
 import com.kyc.snap.crossword.CrosswordParser;
 import com.kyc.snap.solver.GenericSolver;
+import com.kyc.snap.solver.GenericSolver.AllResults;
+import com.kyc.snap.solver.GenericSolver.Budget;
+import com.kyc.snap.solver.GenericSolver.SearchParameters;
 import com.kyc.snap.solver.PregexSolver;
-import com.kyc.snap.words.CustomDictionary;
 import com.kyc.snap.words.Dictionary;
+import com.kyc.snap.words.DictionaryRegistry;
 import com.kyc.snap.words.StringUtil;
 import com.kyc.snap.words.WordSearchSolver;
-import com.kyc.snap.words.WordSearchSolver.AllResults;
 
 import one.util.streamex.EntryStream;
 
+import javax.ws.rs.core.StreamingOutput;
+
 public record WordsResource(
         WordSearchSolver wordsearchSolver,
         CrosswordParser crosswordParser,
-        PregexSolver pregexSolver,
-        Dictionary dictionary) implements WordsService {
+        Map<String, PregexSolver> pregexSolvers,
+        ExecutorService pregexExecutor,
+        DictionaryRegistry dictionaries,
+        ObjectMapper objectMapper,
+        Duration maxPregexBatchTime) implements WordsService {
+
+    public static final String DEFAULT_PREGEX_MODEL = "english";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WordsResource.class);
+
+    /**
+     * Limits on every pregex query, so that expensive queries return their best results so far instead of tying up the
+     * server.
+     */
+    private static final Budget MAX_PREGEX_BUDGET = new Budget(Duration.ofSeconds(30), Long.MAX_VALUE, 5000000);
+
+    private static final int MAX_PREGEX_BATCH_SIZE = 100;
+
+    /**
+     * The default time limit for a whole batch of pregex queries, including the time that queries wait for a free
+     * worker.
+     */
+    public static final Duration DEFAULT_MAX_PREGEX_BATCH_TIME = Duration.ofSeconds(60);
+
+    public WordsResource(
+            WordSearchSolver wordsearchSolver,
+            CrosswordParser crosswordParser,
+            Map<String, PregexSolver> pregexSolvers,
+            ExecutorService pregexExecutor,
+            DictionaryRegistry dictionaries,
+            ObjectMapper objectMapper) {
+        this(
+                wordsearchSolver,
+                crosswordParser,
+                pregexSolvers,
+                pregexExecutor,
+                dictionaries,
+                objectMapper,
+                DEFAULT_MAX_PREGEX_BATCH_TIME);
+    }
 
     @Override
     public SolveWordSearchResponse solveWordSearch(SolveWordSearchRequest request) {
@@ -34,11 +91,14 @@ public record WordsResource(
         else
             wordLengths = request.fuzzy() ? List.of(3, 5) : List.of(3);
 
-        AllResults results = wordsearchSolver.find(
+        WordSearchSolver.AllResults results = wordsearchSolver.find(
                 request.grid(),
-                request.wordBank().isEmpty() ? dictionary : new CustomDictionary(request.wordBank()),
+                request.wordBank().isEmpty()
+                        ? toDictionary(request.dictionary())
+                        : dictionaries.forWordBank(request.wordBank()),
                 request.boggle(),
-                wordLengths);
+                wordLengths,
+                request.parallel());
         return new SolveWordSearchResponse(results.results(), results.hitLimit());
     }
 
@@ -63,18 +123,83 @@ public record WordsResource(
 
     @Override
     public PregexResponse pregex(PregexRequest request) {
-        String query;
-        if (request.canRearrange()) {
-            if (request.parts().size() == 1)
-                query = "<" + request.parts().get(0) + ">";
-            else
-                query = request.parts().stream()
-                        .map(part -> "(" + part + ")")
-                        .collect(Collectors.joining("", "<", ">"));
-        } else
-            query = String.join("", request.parts());
-        List<GenericSolver.Result> results = pregexSolver.solve(query, request.wordLengths());
-        return new PregexResponse(results);
+        return pregex(request, toBudget(request));
+    }
+
+    private PregexResponse pregex(PregexRequest request, Budget budget) {
+        AllResults results = toPregexSolver(request).solve(
+                toPregexQuery(request),
+                request.wordLengths(),
+                toSearchParameters(request),
+                budget,
+                (result, rank) -> {});
+        return new PregexResponse(results.results(), results.hitLimit());
+    }
+
+    @Override
+    public StreamingOutput pregexStream(PregexRequest request) {
+        return output -> {
+            PregexEvent doneEvent;
+            // Invalid requests are also reported in the stream, so that clients only handle one error format
+            try {
+                AllResults results = toPregexSolver(request).solve(
+                        toPregexQuery(request),
+                        request.wordLengths(),
+                        toSearchParameters(request),
+                        toBudget(request),
+                        (result, rank) -> {
+                            try {
+                                writeEvent(output, new PregexEvent("result", result, rank, null, null, null));
+                            } catch (IOException e) {
+                                // the client went away, so stop searching
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                doneEvent = new PregexEvent("done", null, null, results.results(), results.hitLimit(), null);
+            } catch (IllegalArgumentException e) {
+                doneEvent = new PregexEvent("error", null, null, null, null, e.getMessage());
+            }
+            writeEvent(output, doneEvent);
+        };
+    }
+
+    @Override
+    public PregexBatchResponse pregexBatch(PregexBatchRequest request) {
+        if (request.queries().size() > MAX_PREGEX_BATCH_SIZE)
+            throw new IllegalArgumentException("Too many queries");
+
+        long deadline = System.nanoTime() + maxPregexBatchTime.toNanos();
+        // Each query stops by the deadline on its own, so that a timed out query doesn't keep using a worker
+        List<Future<PregexResponse>> futures = request.queries().stream()
+                .map(query -> pregexExecutor.submit(() -> pregex(query, capTimeout(toBudget(query), deadline))))
+                .toList();
+        List<PregexBatchResult> responses = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    PregexResponse response =
+                            futures.get(i).get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                    responses.add(new PregexBatchResult(response.results(), response.hitLimit(), null));
+                } catch (ExecutionException e) {
+                    // Only invalid queries are the client's fault, and other messages may expose internal details
+                    if (e.getCause() instanceof IllegalArgumentException)
+                        responses.add(new PregexBatchResult(null, null, e.getCause().getMessage()));
+                    else {
+                        LOGGER.error("Failed to solve pregex query {}", request.queries().get(i).parts(), e.getCause());
+                        responses.add(new PregexBatchResult(null, null, "Internal error"));
+                    }
+                } catch (TimeoutException e) {
+                    responses.add(new PregexBatchResult(null, true, "Timed out"));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            for (Future<PregexResponse> future : futures)
+                future.cancel(true);
+        }
+        return new PregexBatchResponse(responses);
     }
 
     @Override
@@ -84,7 +209,7 @@ public record WordsResource(
         String containedSubsequence = request.containedSubsequence() == null ? null : clean(request.containedSubsequence());
         String contains = request.contains() == null ? null : StringUtil.sorted(clean(request.contains()));
         String contained = request.contained() == null ? null : StringUtil.sorted(clean(request.contained()));
-        List<String> words = EntryStream.of(dictionary.getWordFrequencies())
+        List<String> words = EntryStream.of(toDictionary(request.dictionary()).getWordFrequencies())
                 .filterKeys(word -> request.minLength() == null || word.length() >= request.minLength())
                 .filterKeys(word -> request.maxLength() == null || word.length() <= request.maxLength())
                 .filterValues(freq -> request.minFreq() == null || freq >= request.minFreq())
@@ -100,6 +225,66 @@ public record WordsResource(
         return new FindWordsResponse(words);
     }
 
+    private Dictionary toDictionary(String name) {
+        return dictionaries.get(name != null ? name : DictionaryRegistry.ENGLISH);
+    }
+
+    private PregexSolver toPregexSolver(PregexRequest request) {
+        PregexSolver pregexSolver = pregexSolvers.get(request.model() != null ? request.model() : DEFAULT_PREGEX_MODEL);
+        if (pregexSolver == null)
+            throw new IllegalArgumentException("Unknown model");
+        return pregexSolver;
+    }
+
+    private String toPregexQuery(PregexRequest request) {
+        if (!request.canRearrange())
+            return String.join("", request.parts());
+        if (request.parts().size() == 1)
+            return "<" + request.parts().get(0) + ">";
+        return request.parts().stream()
+                .map(part -> "(" + part + ")")
+                .collect(Collectors.joining("", "<", ">"));
+    }
+
+    private SearchParameters toSearchParameters(PregexRequest request) {
+        return new SearchParameters(
+                request.beamWidth() != null ? request.beamWidth() : SearchParameters.DEFAULT.beamWidth(),
+                request.maxNumResults() != null ? request.maxNumResults() : SearchParameters.DEFAULT.maxNumResults(),
+                request.parallel(),
+                request.maxStatesPerContext() != null
+                        ? request.maxStatesPerContext()
+                        : SearchParameters.DEFAULT.maxStatesPerContext(),
+                request.bestFirst());
+    }
+
+    private Budget toBudget(PregexRequest request) {
+        if (request.timeoutMillis() == null)
+            return MAX_PREGEX_BUDGET;
+        if (request.timeoutMillis() <= 0)
+            throw new IllegalArgumentException("Timeout must be positive");
+        Duration timeout = Duration.ofMillis(request.timeoutMillis());
+        return new Budget(
+                timeout.compareTo(MAX_PREGEX_BUDGET.timeout()) < 0 ? timeout : MAX_PREGEX_BUDGET.timeout(),
+                MAX_PREGEX_BUDGET.maxExpansions(),
+                MAX_PREGEX_BUDGET.maxFrontierSize());
+    }
+
+    /**
+     * Returns the given budget, with its timeout shortened to end by the given deadline (from {@link System#nanoTime}).
+     */
+    private static Budget capTimeout(Budget budget, long deadline) {
+        Duration remaining = Duration.ofNanos(Math.max(deadline - System.nanoTime(), 0));
+        if (budget.timeout() != null && budget.timeout().compareTo(remaining) <= 0)
+            return budget;
+        return new Budget(remaining, budget.maxExpansions(), budget.maxFrontierSize());
+    }
+
+    private void writeEvent(OutputStream output, PregexEvent event) throws IOException {
+        output.write(objectMapper.writeValueAsBytes(event));
+        output.write('\n');
+        output.flush();
+    }
+
     private String clean(String s) {
         return s.toUpperCase().replaceAll("[^A-Z]", "");
     }
@@ -0,0 +1,103 @@
+package com.kyc.snap.solver;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.kyc.snap.solver.GenericSolverImpl.FullState;
+import com.kyc.snap.solver.GenericSolverImpl.MergeKey;
+import com.kyc.snap.solver.GenericSolverImpl.TokenNode;
+
+import one.util.streamex.StreamEx;
+
+/**
+ * Expands states in order of their score plus an upper bound on the score that can still be gained (A* search). Once
+ * maxNumResults results are at least as good as the bound of every unexpanded state, no other result can beat them,
+ * so the results are exactly the best ones. Unlike {@link GenericSolverImpl}, this never drops a state that could lead
+ * to a better result, but it may expand many states if the bound is loose.
+ */
+public class BestFirstSolver<State> implements GenericSolver<State> {
+
+    private final SearchParameters parameters;
+    private final Heuristic<State> heuristic;
+
+    public BestFirstSolver(SearchParameters parameters, Heuristic<State> heuristic) {
+        this.parameters = parameters;
+        this.heuristic = heuristic;
+    }
+
+    @Override
+    public AllResults solve(
+            State start,
+            Transitions<State> transitions,
+            PriorModel model,
+            Budget budget,
+            ResultListener listener) {
+        PriorityQueue<OpenState<State>> openStates = new PriorityQueue<>();
+        TopResults bestResults = new TopResults(parameters.maxNumResults(), listener);
+        BudgetTracker budgetTracker = new BudgetTracker(budget);
+        Map<MergeKey<State>, Integer> numExpandedByKey = new HashMap<>();
+        push(openStates, new FullState<>(start, null, model.startContext(), 0), bestResults);
+        while (!openStates.isEmpty()) {
+            OpenState<State> openState = openStates.poll();
+            if (openState.priority <= bestResults.minScore())
+                break;
+            FullState<State> state = openState.state;
+            // States are expanded in order of priority, and states with the same state and context have the same
+            // bound, so the first ones expanded are also the highest scoring ones
+            if (parameters.maxStatesPerContext() > 0
+                    && numExpandedByKey.merge(new MergeKey<>(state.state(), state.context()), 1, Integer::sum)
+                            > parameters.maxStatesPerContext())
+                continue;
+            if (!budgetTracker.tryExpand() || !budgetTracker.checkFrontierSize(openStates.size()))
+                break;
+            double[] priorProbabilities = model.getProbabilities(state.context());
+            transitions.accept(state.state(), (nextState, emission) -> {
+                if (emission == null) {
+                    if (nextState != null)
+                        push(
+                                openStates,
+                                new FullState<>(nextState, state.tokens(), state.context(), state.score()),
+                                bestResults);
+                    else
+                        bestResults.add(new Result(model.toMessage(TokenNode.toList(state.tokens())), state.score()));
+                    return;
+                }
+                for (int mask = emission.mask(); mask != 0; mask &= mask - 1) {
+                    int j = Integer.numberOfTrailingZeros(mask);
+                    double probability = priorProbabilities[j] * emission.probability(j);
+                    if (probability == 0)
+                        continue;
+                    TokenNode newTokens = new TokenNode(state.tokens(), j);
+                    double newScore = state.score() + Math.log(probability) + 2;
+                    if (nextState != null)
+                        push(
+                                openStates,
+                                new FullState<>(nextState, newTokens, model.advance(state.context(), j), newScore),
+                                bestResults);
+                    else
+                        bestResults.add(new Result(model.toMessage(TokenNode.toList(newTokens)), newScore));
+                }
+            });
+        }
+        List<Result> results = StreamEx.of(bestResults.toList())
+                .distinct(Result::message)
+                .toList();
+        return new AllResults(results, budgetTracker.isExhausted());
+    }
+
+    private void push(PriorityQueue<OpenState<State>> openStates, FullState<State> state, TopResults bestResults) {
+        double priority = state.score() + heuristic.maxRemainingScore(state.state());
+        if (priority > bestResults.minScore())
+            openStates.add(new OpenState<>(state, priority));
+    }
+
+    record OpenState<State>(FullState<State> state, double priority) implements Comparable<OpenState<State>> {
+
+        @Override
+        public int compareTo(OpenState<State> other) {
+            return Double.compare(other.priority, priority);
+        }
+    }
+}
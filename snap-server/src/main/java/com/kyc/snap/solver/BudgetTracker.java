@@ -0,0 +1,56 @@
+package com.kyc.snap.solver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kyc.snap.solver.GenericSolver.Budget;
+
+/**
+ * Keeps track of the resources used by a solve. Safe to use from multiple threads.
+ */
+class BudgetTracker {
+
+    /**
+     * Only check the clock once every this many expansions, since expanding a state is much cheaper than a system
+     * call.
+     */
+    private static final int CLOCK_CHECK_INTERVAL = 256;
+
+    private final Budget budget;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong numExpansions = new AtomicLong();
+    private volatile boolean exhausted;
+
+    BudgetTracker(Budget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Records that a state is about to be expanded, and returns false if the budget has run out instead. The budget
+     * also runs out if the current thread is interrupted, e.g. because the solve was cancelled.
+     */
+    boolean tryExpand() {
+        if (exhausted)
+            return false;
+        long n = numExpansions.incrementAndGet();
+        if (n > budget.maxExpansions()
+                || n % CLOCK_CHECK_INTERVAL == 0
+                && (Thread.currentThread().isInterrupted()
+                        || budget.timeout() != null
+                        && System.nanoTime() - startNanos > budget.timeout().toNanos()))
+            exhausted = true;
+        return !exhausted;
+    }
+
+    /**
+     * Returns false if there are more unexpanded states than the budget allows.
+     */
+    boolean checkFrontierSize(long frontierSize) {
+        if (frontierSize > budget.maxFrontierSize())
+            exhausted = true;
+        return !exhausted;
+    }
+
+    boolean isExhausted() {
+        return exhausted;
+    }
+}
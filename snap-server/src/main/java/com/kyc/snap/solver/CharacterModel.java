@@ -0,0 +1,328 @@
+package com.kyc.snap.solver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kyc.snap.solver.GenericSolver.PriorModel;
+import com.kyc.snap.words.Dictionary;
+import com.kyc.snap.words.EnglishDictionary;
+
+/**
+ * A character n-gram model, which predicts each token from only the previous (order - 1) tokens, with stupid backoff to
+ * shorter contexts for tokens that never followed the full context. Unlike {@link EnglishModel}, it gives a non-zero
+ * probability to strings that aren't in the dictionary, and its context is short, so many more states share the same
+ * context.
+ *
+ * <p>The model is trained on the words of a dictionary (and the second words of its word pairs), weighted by frequency.
+ * Each context is stored in an off-heap open addressing table, with the relative frequency of each next token quantized
+ * to a byte. The probabilities of recently used contexts are kept in a small direct-mapped array, so that most lookups
+ * don't need to allocate. Training takes a while, so the model of the English dictionary is saved to a file the first time it's
+ * used (or whenever the dictionary changes), and later loads just map the file.
+ *
+ * <pre>
+ * header:             magic, version, order, capacity (ints)
+ * keys:               long[capacity], the key of the context in each slot, or 0 if the slot is empty
+ * probabilities:      byte[capacity * NUM_TOKENS], the quantized probability of each token after each context
+ * </pre>
+ */
+public class CharacterModel implements PriorModel {
+
+    public static final String ENGLISH_COMPILED_FILE = "./data/english-characters-%d.bin";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CharacterModel.class);
+    private static final int MAGIC = 0x534e434d;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    private static final int NUM_TOKENS = EnglishTokens.NUM_LETTERS + 1;
+    private static final double BACKOFF = 0.4;
+    /**
+     * Probabilities are quantized to the nearest multiple of 1/QUANTIZATION_STEPS in log2 space.
+     */
+    private static final int QUANTIZATION_STEPS = 8;
+    private static final int ZERO = 255;
+    private static final int NUM_RECENT_PROBABILITIES = 1 << 12;
+    private static final double[] QUANTIZED_PROBABILITIES = new double[ZERO + 1];
+
+    static {
+        for (int q = 0; q < ZERO; q++)
+            QUANTIZED_PROBABILITIES[q] = Math.pow(2, -(double) q / QUANTIZATION_STEPS);
+    }
+
+    private final int order;
+    /**
+     * Powers of (NUM_TOKENS + 1), up to the number of tokens in a context.
+     */
+    private final long[] powers;
+    private final int mask;
+    private final ByteBuffer buffer;
+    private final LongBuffer keys;
+    private final ByteBuffer probabilities;
+    /**
+     * Entries are immutable, so reading them without synchronization is safe; other threads may just not see the most
+     * recent entries yet.
+     */
+    private final RecentProbabilities[] recentProbabilities = new RecentProbabilities[NUM_RECENT_PROBABILITIES];
+
+    record RecentProbabilities(long context, double[] probabilities) {}
+
+    public CharacterModel(Dictionary dictionary, int order) {
+        if (order < 1 || order > 12)
+            throw new IllegalArgumentException("Order must be between 1 and 12");
+        this.order = order;
+        this.powers = powers(order);
+
+        Map<Long, double[]> counts = new HashMap<>();
+        dictionary.getWordFrequencies().forEach((word, frequency) -> {
+            if (isUpperCase(word))
+                addCounts(counts, toTokens("", word), 0, frequency);
+        });
+        for (var entry : dictionary.getBiWordFrequencies().entrySet())
+            if (isUpperCase(entry.getKey()))
+                for (var nextEntry : entry.getValue().entrySet())
+                    if (isUpperCase(nextEntry.getKey()))
+                        addCounts(
+                                counts,
+                                toTokens(entry.getKey(), nextEntry.getKey()),
+                                entry.getKey().length() + 1,
+                                nextEntry.getValue());
+
+        long numSlots = Long.highestOneBit(Math.max(counts.size(), 1) * 2L) * 2;
+        int size = bufferSize(numSlots);
+        int capacity = (int) numSlots;
+        mask = capacity - 1;
+        buffer = ByteBuffer.allocateDirect(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(order).putInt(capacity);
+        keys = buffer.slice(HEADER_SIZE, capacity * Long.BYTES).asLongBuffer();
+        probabilities = buffer.slice(HEADER_SIZE + capacity * Long.BYTES, capacity * NUM_TOKENS);
+        counts.forEach((key, tokenCounts) -> {
+            double total = 0;
+            for (double count : tokenCounts)
+                total += count;
+            int slot = slot(key);
+            keys.put(slot, key);
+            for (int token = 0; token < NUM_TOKENS; token++)
+                probabilities.put(slot * NUM_TOKENS + token, (byte) quantize(tokenCounts[token] / total));
+        });
+    }
+
+    private CharacterModel(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Not a compiled character model");
+        int capacity = buffer.getInt(12);
+        if (Integer.bitCount(capacity) != 1 || buffer.capacity() != bufferSize(capacity))
+            throw new IllegalArgumentException("Truncated character model");
+        this.buffer = buffer;
+        order = buffer.getInt(8);
+        powers = powers(order);
+        mask = capacity - 1;
+        keys = buffer.slice(HEADER_SIZE, capacity * Long.BYTES).asLongBuffer();
+        probabilities = buffer.slice(HEADER_SIZE + capacity * Long.BYTES, capacity * NUM_TOKENS);
+    }
+
+    /**
+     * Returns the model of the English dictionary, loading it from its file if it's up to date, and otherwise training
+     * it and saving it to the file.
+     */
+    public static CharacterModel ofEnglish(EnglishDictionary dictionary, int order) {
+        File file = new File(String.format(ENGLISH_COMPILED_FILE, order));
+        if (file.lastModified() >= new File(EnglishDictionary.COMPILED_FILE).lastModified()) {
+            try {
+                return load(file);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to load character model from {}, retraining it", file, e);
+            }
+        }
+        CharacterModel model = new CharacterModel(dictionary, order);
+        model.write(file);
+        return model;
+    }
+
+    public static CharacterModel load(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new CharacterModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes this model to the given file. The file is replaced atomically, so concurrent readers never see a
+     * partially written file.
+     */
+    public void write(File file) {
+        try {
+            File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            try {
+                try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                    ByteBuffer contents = buffer.duplicate().clear();
+                    while (contents.hasRemaining())
+                        channel.write(contents);
+                }
+                Files.move(
+                        tempFile.toPath(),
+                        file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The probabilities only depend on the last (order - 1) tokens. The context is those tokens (from first to last)
+     * in base (NUM_TOKENS + 1), where each digit is a token plus 1, and missing tokens at the start are 0. The start of
+     * the message counts as a word delimiter.
+     */
+    @Override
+    public long startContext() {
+        return advance(0, 0);
+    }
+
+    @Override
+    public long advance(long context, int token) {
+        return (context * (NUM_TOKENS + 1) + token + 1) % powers[order - 1];
+    }
+
+    @Override
+    public double[] getProbabilities(long context) {
+        int index = Long.hashCode(context * 0x9E3779B97F4A7C15L) & (NUM_RECENT_PROBABILITIES - 1);
+        RecentProbabilities recent = recentProbabilities[index];
+        if (recent != null && recent.context == context)
+            return recent.probabilities;
+        double[] probabilities = computeProbabilities(context);
+        recentProbabilities[index] = new RecentProbabilities(context, probabilities);
+        return probabilities;
+    }
+
+    @Override
+    public String toMessage(List<Integer> tokens) {
+        StringBuilder b = new StringBuilder();
+        for (int token : tokens)
+            b.append(token == 0 ? ' ' : (char) (token + '@'));
+        if (!b.isEmpty() && b.charAt(b.length() - 1) == ' ')
+            b.setLength(b.length() - 1);
+        return b.toString();
+    }
+
+    private double[] computeProbabilities(long context) {
+        double[] result = new double[NUM_TOKENS];
+        int numFound = 0;
+        int[] slots = new int[order];
+        // Find all contexts from shortest to longest, then back off from the longest one
+        for (int length = 0; length < order && (length == 0 || context / powers[length - 1] != 0); length++) {
+            int slot = slot(key(context, length));
+            if (keys.get(slot) != key(context, length))
+                break;
+            slots[numFound++] = slot;
+        }
+        double weight = 1;
+        for (int i = numFound - 1; i >= 0; i--, weight *= BACKOFF)
+            for (int token = 0; token < NUM_TOKENS; token++)
+                if (result[token] == 0)
+                    result[token] = weight * probability(slots[i], token);
+        // Backing off would allow empty words
+        if (order > 1 && context % (NUM_TOKENS + 1) == 1)
+            result[0] = 0;
+
+        double totalProb = 0;
+        for (double prob : result)
+            totalProb += prob;
+        if (totalProb > 0)
+            for (int i = 0; i < result.length; i++)
+                result[i] /= totalProb;
+        return result;
+    }
+
+    /**
+     * Adds the given weight to the count of each token from the given start index, in each context of up to
+     * (order - 1) previous tokens.
+     */
+    private void addCounts(Map<Long, double[]> counts, int[] tokens, int start, double weight) {
+        long context = startContext();
+        for (int i = 0; i < tokens.length; i++) {
+            if (i >= start)
+                for (int length = 0; length < order && (length == 0 || context / powers[length - 1] != 0); length++)
+                    counts.computeIfAbsent(key(context, length), k -> new double[NUM_TOKENS])[tokens[i]] += weight;
+            context = advance(context, tokens[i]);
+        }
+    }
+
+    /**
+     * Returns the key in the table of the last given number of tokens of the given context, which is those tokens with
+     * a leading 1, so each key is unique and no key is 0.
+     */
+    private long key(long context, int length) {
+        return powers[length] + context % powers[length];
+    }
+
+    private double probability(int slot, int token) {
+        return QUANTIZED_PROBABILITIES[probabilities.get(slot * NUM_TOKENS + token) & 0xff];
+    }
+
+    /**
+     * Returns the slot of the given key in the table, or the empty slot where it would be.
+     */
+    private int slot(long key) {
+        int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 32) & mask;
+        while (keys.get(slot) != 0 && keys.get(slot) != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Returns the size in bytes of a model with the given number of slots, which must fit in a single buffer.
+     */
+    private static int bufferSize(long capacity) {
+        long size = HEADER_SIZE + capacity * (Long.BYTES + NUM_TOKENS);
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Character model of " + size + " bytes is larger than 2 GB");
+        return (int) size;
+    }
+
+    private static long[] powers(int order) {
+        long[] powers = new long[order];
+        powers[0] = 1;
+        for (int i = 1; i < order; i++)
+            powers[i] = powers[i - 1] * (NUM_TOKENS + 1);
+        return powers;
+    }
+
+    private static int[] toTokens(String prevWord, String word) {
+        String message = prevWord.isEmpty() ? word + " " : prevWord + " " + word + " ";
+        int[] tokens = new int[message.length()];
+        for (int i = 0; i < message.length(); i++)
+            tokens[i] = message.charAt(i) == ' ' ? 0 : message.charAt(i) - '@';
+        return tokens;
+    }
+
+    private static int quantize(double probability) {
+        if (probability == 0)
+            return ZERO;
+        return (int) Math.min(Math.round(-Math.log(probability) / Math.log(2) * QUANTIZATION_STEPS), ZERO - 1);
+    }
+
+    private static boolean isUpperCase(String word) {
+        if (word.isEmpty())
+            return false;
+        for (int i = 0; i < word.length(); i++)
+            if (word.charAt(i) < 'A' || word.charAt(i) > 'Z')
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+package com.kyc.snap.solver;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * The probability of each token being emitted in a transition. Most emissions allow a set of tokens that are all
+ * equally likely, so they are stored as a bitmask of those tokens (bit i is token i) and a single probability, and
+ * intersecting two of them is a single AND. Only emissions with different probabilities for different tokens store an
+ * array of all probabilities.
+ *
+ * @param mask          the tokens with a non-zero probability
+ * @param probability   the probability of each token in the mask, if probabilities is null
+ * @param probabilities the probability of each token, or null if they are all the same
+ */
+public record Emission(int mask, double probability, @Nullable double[] probabilities) {
+
+    public static Emission uniform(int mask, double probability) {
+        return new Emission(mask, probability, null);
+    }
+
+    public static Emission of(double[] probabilities) {
+        int mask = 0;
+        for (int i = 0; i < probabilities.length; i++)
+            if (probabilities[i] != 0)
+                mask |= 1 << i;
+        return new Emission(mask, 0, probabilities);
+    }
+
+    public double probability(int token) {
+        if ((mask & 1 << token) == 0)
+            return 0;
+        return probabilities == null ? probability : probabilities[token];
+    }
+
+    public double maxProbability() {
+        return probabilities == null ? probability : Arrays.stream(probabilities).max().orElse(0);
+    }
+
+    public boolean isEmpty() {
+        return mask == 0;
+    }
+
+    /**
+     * Returns the emission where each token is emitted by both this and the other emission.
+     */
+    public Emission and(Emission other) {
+        if (probabilities == null && other.probabilities == null)
+            return uniform(mask & other.mask, probability * other.probability);
+        int newMask = mask & other.mask;
+        double[] newProbabilities = new double[Math.max(length(), other.length())];
+        for (int m = newMask; m != 0; m &= m - 1) {
+            int token = Integer.numberOfTrailingZeros(m);
+            newProbabilities[token] = probability(token) * other.probability(token);
+        }
+        return new Emission(newMask, 0, newProbabilities);
+    }
+
+    /**
+     * Returns the emission that only emits the given tokens, with the same probabilities as this one.
+     */
+    public Emission restrict(int tokenMask) {
+        if (probabilities == null)
+            return uniform(mask & tokenMask, probability);
+        double[] newProbabilities = new double[probabilities.length];
+        for (int m = mask & tokenMask; m != 0; m &= m - 1) {
+            int token = Integer.numberOfTrailingZeros(m);
+            newProbabilities[token] = probabilities[token];
+        }
+        return new Emission(mask & tokenMask, 0, newProbabilities);
+    }
+
+    private int length() {
+        return probabilities == null ? 32 - Integer.numberOfLeadingZeros(mask) : probabilities.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Emission other
+                && mask == other.mask
+                && probability == other.probability
+                && Arrays.equals(probabilities, other.probabilities);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * mask + Double.hashCode(probability)) + Arrays.hashCode(probabilities);
+    }
+}
@@ -2,51 +2,98 @@ package com.kyc.snap.solver;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
-import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.kyc.snap.solver.GenericSolver.PriorModel;
 import com.kyc.snap.words.EnglishDictionary;
+import com.kyc.snap.words.FrequencyTrie;
 
+/**
+ * The probabilities of each next letter only depend on the previous word and the current word prefix, so they are
+ * cached by those. Both are identified by their node in a frequency trie (which includes the words in word pairs), so
+ * advancing the context by a token is a single step in the trie, without building any strings.
+ *
+ * <p>The cache has two levels: a small direct-mapped array of recently used probabilities, which can be read without
+ * any locking or allocation, in front of a larger Caffeine cache.
+ */
 public class EnglishModel implements PriorModel {
 
+    public static final long DEFAULT_CACHE_SIZE = 100000;
+    private static final int NUM_RECENT_PROBABILITIES = 1 << 12;
+
     private final EnglishDictionary dictionary;
-    private final Cache<NextLetterFrequenciesKey, double[]> nextLetterFrequenciesCache = Caffeine.newBuilder()
-            .maximumSize(100000)
-            .build();
-    private final Cache<String, double[]> singlePrefixFrequenciesCache = Caffeine.newBuilder()
-            .maximumSize(100000)
-            .build();
+    private final FrequencyTrie frequencyTrie;
+    /**
+     * The id in the dictionary's word pairs of the word that ends at each node, or -1 if no pairs start with it.
+     */
+    private final int[] pairWordIds;
+    /**
+     * Entries are immutable, so reading them without synchronization is safe; other threads may just not see the most
+     * recent entries yet.
+     */
+    private final RecentProbabilities[] recentProbabilities = new RecentProbabilities[NUM_RECENT_PROBABILITIES];
+    private final LongAdder recentProbabilitiesHits = new LongAdder();
+    private final LoadingCache<Long, double[]> probabilitiesCache;
 
-    private record NextLetterFrequenciesKey(String prevWord, String prefix) {}
+    record RecentProbabilities(long context, double[] probabilities) {}
 
     public EnglishModel(EnglishDictionary dictionary) {
+        this(dictionary, DEFAULT_CACHE_SIZE);
+    }
+
+    public EnglishModel(EnglishDictionary dictionary, long cacheSize) {
         this.dictionary = dictionary;
+
+        // Words that only appear as the second word of a pair can still be completed after the right previous word
+        this.frequencyTrie = new FrequencyTrie(dictionary.getWordAndNextWordFrequencies());
+
+        this.pairWordIds = new int[frequencyTrie.numNodes()];
+        Arrays.fill(pairWordIds, -1);
+        for (String prevWord : dictionary.getBiWordFrequencies().keySet()) {
+            int node = frequencyTrie.find(prevWord);
+            if (node != FrequencyTrie.NONE)
+                pairWordIds[node] = dictionary.wordId(prevWord);
+        }
+
+        this.probabilitiesCache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build(this::computeProbabilities);
     }
 
+    /**
+     * The probabilities only depend on the current word prefix and the previous word. The context is the node of the
+     * previous word (or NONE for the first word) in the high 32 bits, and the node of the prefix in the low 32 bits.
+     */
     @Override
-    public double[] getProbabilities(List<Integer> tokens) {
-        int lastIndex = tokens.lastIndexOf(0);
-        String prefix = toMessage(tokens.subList(lastIndex + 1, tokens.size()));
-        String prevWord = lastIndex == -1
-                ? null
-                : toMessage(tokens.subList(tokens.subList(0, lastIndex).lastIndexOf(0) + 1, lastIndex));
-        return nextLetterFrequenciesCache.get(new NextLetterFrequenciesKey(prevWord, prefix), key -> {
-            double[] frequencies = Arrays.copyOf(getCachedFrequencies(prefix), EnglishTokens.NUM_LETTERS + 1);
-
-            // bias toward words that appear in the bi-word list after the previous word
-            if (prevWord != null)
-                updateFrequencies(dictionary.getWordFrequencies(prevWord, prefix), prefix, frequencies);
+    public long startContext() {
+        return context(FrequencyTrie.NONE, FrequencyTrie.ROOT);
+    }
 
-            double totalProb = 0;
-            for (double prob : frequencies)
-                totalProb += prob;
-            for (int i = 0; i < frequencies.length; i++)
-                frequencies[i] /= totalProb;
+    @Override
+    public long advance(long context, int token) {
+        int prefixNode = (int) context;
+        if (token == 0)
+            return context(prefixNode, FrequencyTrie.ROOT);
+        return context(
+                (int) (context >> 32),
+                prefixNode == FrequencyTrie.NONE ? prefixNode : frequencyTrie.child(prefixNode, (char) (token + '@')));
+    }
 
-            return frequencies;
-        });
+    @Override
+    public double[] getProbabilities(long context) {
+        int index = Long.hashCode(context * 0x9E3779B97F4A7C15L) & (NUM_RECENT_PROBABILITIES - 1);
+        RecentProbabilities recent = recentProbabilities[index];
+        if (recent != null && recent.context == context) {
+            recentProbabilitiesHits.increment();
+            return recent.probabilities;
+        }
+        double[] probabilities = probabilitiesCache.get(context);
+        recentProbabilities[index] = new RecentProbabilities(context, probabilities);
+        return probabilities;
     }
 
     @Override
@@ -59,20 +106,36 @@ public class EnglishModel implements PriorModel {
         return b.toString();
     }
 
-    private double[] getCachedFrequencies(String prefix) {
-        return singlePrefixFrequenciesCache.get(prefix, key -> {
-            double[] frequencies = new double[EnglishTokens.NUM_LETTERS + 1];
-            updateFrequencies(dictionary.getWordFrequencies(prefix), prefix, frequencies);
-            return frequencies;
-        });
+    /**
+     * Returns the stats of the probabilities cache, where hits include hits of recently used probabilities.
+     */
+    public CacheStats cacheStats() {
+        return probabilitiesCache.stats().plus(CacheStats.of(recentProbabilitiesHits.sum(), 0, 0, 0, 0, 0, 0));
+    }
+
+    private double[] computeProbabilities(long context) {
+        int prevWordNode = (int) (context >> 32);
+        int prefixNode = (int) context;
+        double[] frequencies = new double[EnglishTokens.NUM_LETTERS + 1];
+        if (prefixNode != FrequencyTrie.NONE) {
+            frequencyTrie.addNextLetterFrequencies(prefixNode, frequencies);
+
+            // bias toward words that appear in the bi-word list after the previous word
+            if (prevWordNode != FrequencyTrie.NONE && pairWordIds[prevWordNode] != -1)
+                dictionary.addNextLetterFrequencies(
+                        pairWordIds[prevWordNode], frequencyTrie.prefix(prefixNode), frequencies);
+        }
+
+        double totalProb = 0;
+        for (double prob : frequencies)
+            totalProb += prob;
+        for (int i = 0; i < frequencies.length; i++)
+            frequencies[i] /= totalProb;
+
+        return frequencies;
     }
 
-    private void updateFrequencies(Map<String, Long> wordFrequencies, String prefix, double[] frequencies) {
-        wordFrequencies.forEach((word, frequency) -> {
-            if (word.equals(prefix))
-                frequencies[0] += frequency;
-            else
-                frequencies[word.charAt(prefix.length()) - '@'] += frequency;
-        });
+    private static long context(int prevWordNode, int prefixNode) {
+        return (long) prevWordNode << 32 | (prefixNode & 0xffffffffL);
     }
 }
@@ -4,37 +4,39 @@ public enum EnglishTokens {
     ;
 
     public static final int NUM_LETTERS = 26;
-    private static final double[][] IS = new double[NUM_LETTERS][NUM_LETTERS + 1];
-    private static final double[][] PROBABLY = new double[NUM_LETTERS][NUM_LETTERS + 1];
-    private static final double[] WILDCARD = new double[NUM_LETTERS + 1];
-    private static final double[] WORD_DELIMITER = new double[NUM_LETTERS + 1];
+    public static final int WORD_DELIMITER_MASK = 1;
+    public static final int LETTERS_MASK = ((1 << NUM_LETTERS) - 1) << 1;
+    private static final Emission[] IS = new Emission[NUM_LETTERS];
+    private static final Emission[] PROBABLY = new Emission[NUM_LETTERS];
+    private static final Emission WILDCARD = Emission.uniform(LETTERS_MASK, 1. / NUM_LETTERS);
+    private static final Emission WORD_DELIMITER = Emission.uniform(WORD_DELIMITER_MASK, 1);
     static {
         for (char c = 'A'; c <= 'Z'; c++) {
-            IS[c - 'A'][c - '@'] = 1;
-            PROBABLY[c - 'A'][c - '@'] = .8;
+            IS[c - 'A'] = Emission.uniform(1 << (c - '@'), 1);
+            double[] probably = new double[NUM_LETTERS + 1];
+            probably[c - '@'] = .8;
             for (char cc = 'A'; cc <= 'Z'; cc++)
                 if (cc != c)
-                    PROBABLY[c - 'A'][cc - '@'] = .2 / (NUM_LETTERS - 1);
-            WILDCARD[c - '@'] = 1. / NUM_LETTERS;
+                    probably[cc - '@'] = .2 / (NUM_LETTERS - 1);
+            PROBABLY[c - 'A'] = Emission.of(probably);
         }
-        WORD_DELIMITER[0] = 1;
     }
 
-    public static double[] is(char c) {
+    public static Emission is(char c) {
         assert c >= 'A' && c <= 'Z';
         return IS[c - 'A'];
     }
 
-    public static double[] probably(char c) {
+    public static Emission probably(char c) {
         assert c >= 'A' && c <= 'Z';
         return PROBABLY[c - 'A'];
     }
 
-    public static double[] wildcard() {
+    public static Emission wildcard() {
         return WILDCARD;
     }
 
-    public static double[] wordDelimiter() {
+    public static Emission wordDelimiter() {
         return WORD_DELIMITER;
     }
 }
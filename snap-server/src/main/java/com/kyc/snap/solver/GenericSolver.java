@@ -1,5 +1,6 @@
 package com.kyc.snap.solver;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.function.BiConsumer;
 
@@ -7,8 +8,6 @@ import javax.annotation.Nullable;
 
 public interface GenericSolver<State> {
 
-    int MAX_NUM_RESULTS = 100;
-
     /**
      * We're given a starting state and an object representing all possible transitions between states.
      *
@@ -19,7 +18,21 @@ public interface GenericSolver<State> {
      * emits A with 100% probability, and the second state emits all letters with equal probability. The prior would be
      * the likely n-grams and words in English.
      */
-    List<Result> solve(State start, Transitions<State> transitions, PriorModel model);
+    default List<Result> solve(State start, Transitions<State> transitions, PriorModel model) {
+        return solve(start, transitions, model, Budget.UNLIMITED, (result, rank) -> {}).results();
+    }
+
+    /**
+     * Same as above, but stops early and returns the best results found so far if the budget runs out. Also calls the
+     * listener every time a result enters the best results found so far, so that results can be shown before the
+     * search finishes.
+     */
+    AllResults solve(
+            State start,
+            Transitions<State> transitions,
+            PriorModel model,
+            Budget budget,
+            ResultListener listener);
 
     /**
      * For each state (first argument), calls the second argument on all possible next states (with the corresponding
@@ -28,10 +41,10 @@ public interface GenericSolver<State> {
      * <pre>
      * (state, transitions) -> {
      *     // if we transition to state + 1, we emit token 0 or token 1 with equal probability
-     *     transitions.add(state + 1, [0.5, 0.5]);
+     *     transitions.add(state + 1, Emission.uniform(0b11, 0.5));
      *
      *     // if we transition to state + 2, we emit token 0 with 100% probability
-     *     transitions.add(state + 2, [1.0, 0.0]);
+     *     transitions.add(state + 2, Emission.uniform(0b01, 1.0));
      * }
      * </pre>
      */
@@ -39,17 +52,107 @@ public interface GenericSolver<State> {
 
     interface TransitionConsumer<State> {
         /**
-         * Specifies a possible transition. A null nextState corresponds to the end state. A null tokenProbabilities
-         * means that no token is emitted in this transition.
+         * Specifies a possible transition. A null nextState corresponds to the end state. A null emission means that no
+         * token is emitted in this transition.
          */
-        void add(@Nullable State nextState, @Nullable double[] tokenProbabilities);
+        void add(@Nullable State nextState, @Nullable Emission emission);
     }
 
+    /**
+     * A model of the probability of each next token. Solvers don't pass the whole token sequence to the model; they
+     * keep a context for each state, starting from {@link #startContext()} and advanced by each emitted token, so the
+     * cost of each expansion doesn't depend on the length of the message.
+     */
     interface PriorModel {
-        double[] getProbabilities(List<Integer> tokens);
+        /**
+         * Returns the context of the empty token sequence.
+         */
+        long startContext();
+
+        /**
+         * Returns the context of the token sequence with the given context followed by the given token. Contexts must
+         * determine all future probabilities, i.e. if two token sequences have equal contexts, then appending the same
+         * tokens to each of them results in the same probabilities.
+         */
+        long advance(long context, int token);
+
+        double[] getProbabilities(long context);
 
         String toMessage(List<Integer> tokens);
+
+        default long getContext(List<Integer> tokens) {
+            long context = startContext();
+            for (int token : tokens)
+                context = advance(context, token);
+            return context;
+        }
+
+        default double[] getProbabilities(List<Integer> tokens) {
+            return getProbabilities(getContext(tokens));
+        }
+    }
+
+    interface Heuristic<State> {
+        /**
+         * Returns an upper bound on the score that can be added on the way from the given state to the end state, for
+         * any prior. May be negative infinity if the end state can't be reached.
+         */
+        double maxRemainingScore(State state);
     }
 
     record Result(String message, double score) {}
+
+    /**
+     * @param hitLimit whether the search was cut short, either by the budget or by the maximum number of steps
+     */
+    record AllResults(List<Result> results, boolean hitLimit) {}
+
+    /**
+     * Limits on the resources used by a single solve.
+     *
+     * @param timeout         the maximum wall-clock time to search for, or null for no limit
+     * @param maxExpansions   the maximum number of states to expand
+     * @param maxFrontierSize the maximum number of unexpanded states to hold in memory at once
+     */
+    record Budget(@Nullable Duration timeout, long maxExpansions, int maxFrontierSize) {
+
+        public static final Budget UNLIMITED = new Budget(null, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    interface ResultListener {
+        /**
+         * Called with a new result and its rank (starting from 1) among the best results found so far. Later results
+         * may push it down or out of the best results.
+         */
+        void onResult(Result result, int rank);
+    }
+
+    /**
+     * @param beamWidth     the number of highest scoring states that are expanded for each number of emitted tokens
+     * @param maxNumResults the maximum number of results to return
+     * @param parallel      whether to expand states on multiple threads. The results are the same either way, but the
+     *                      transitions and model must be thread-safe.
+     * @param maxStatesPerContext if positive, then of all states that have the same state and the same model context
+     *                      (see {@link PriorModel#getContext}), only this many of the highest scoring ones are kept. All
+     *                      such states have the same possible continuations, so this removes duplicate work while
+     *                      still allowing that many different results to share a continuation.
+     * @param bestFirst     whether to use best-first search with a {@link Heuristic} instead of beam search, which
+     *                      finds exactly the best results but may expand many more states unless the query is short
+     *                      and constrained. beamWidth and parallel don't apply to best-first search. Queries that
+     *                      can be arbitrarily long have no bound, so they use beam search anyway.
+     */
+    record SearchParameters(
+            int beamWidth,
+            int maxNumResults,
+            boolean parallel,
+            int maxStatesPerContext,
+            boolean bestFirst) {
+
+        public static final SearchParameters DEFAULT = new SearchParameters(4000, 100, false, 0, false);
+
+        public SearchParameters {
+            if (beamWidth <= 0 || maxNumResults <= 0 || maxStatesPerContext < 0)
+                throw new IllegalArgumentException("Search parameters must be positive");
+        }
+    }
 }
@@ -1,84 +1,250 @@
 package com.kyc.snap.solver;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Random;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.primitives.Ints;
 
 import one.util.streamex.StreamEx;
 
 public class GenericSolverImpl<State> implements GenericSolver<State> {
 
-    private static final int SEARCH_LIMIT = 4000;
+    /**
+     * The minimum number of states in each parallel chunk, so that small layers aren't split into tasks that cost
+     * more to schedule than to run.
+     */
+    private static final int MIN_CHUNK_SIZE = 64;
 
-    private final Random random = new Random(0);
+    private final SearchParameters parameters;
+
+    public GenericSolverImpl() {
+        this(SearchParameters.DEFAULT);
+    }
+
+    public GenericSolverImpl(SearchParameters parameters) {
+        this.parameters = parameters;
+    }
 
     @Override
-    public List<Result> solve(State start, Transitions<State> transitions, PriorModel model) {
-        List<FullState<State>> currStates = List.of(new FullState<>(start, List.of(), 0));
+    public AllResults solve(
+            State start,
+            Transitions<State> transitions,
+            PriorModel model,
+            Budget budget,
+            ResultListener listener) {
+        List<FullState<State>> currStates = List.of(new FullState<>(start, null, model.startContext(), 0));
         List<FullState<State>> nextStates = new ArrayList<>();
-        TreeSet<Result> bestResults =
-                new TreeSet<>(Comparator.comparingDouble(Result::score).thenComparing(Result::message).reversed());
+        TopResults bestResults = new TopResults(parameters.maxNumResults(), listener);
+        BudgetTracker budgetTracker = new BudgetTracker(budget);
         for (int i = 0; i < 1000 && !currStates.isEmpty(); i++) {
+            if (!budgetTracker.checkFrontierSize(currStates.size() + nextStates.size()))
+                break;
+            if (parameters.maxStatesPerContext() > 0)
+                currStates = mergeEquivalentStates(currStates, model);
             List<FullState<State>> newCurrStates = new ArrayList<>();
-            List<FullState<State>> newNextStates = nextStates;
-            double scoreThreshold = Math.max(approxScoreThreshold(currStates), minScoreThreshold(bestResults));
-            for (FullState<State> state : currStates)
-                if (state.score >= scoreThreshold) {
-                    double[] priorProbabilities = model.getProbabilities(state.tokens);
-                    transitions.accept(state.state, (nextState, posteriorProbabilities) -> {
-                        if (posteriorProbabilities == null) {
-                            if (nextState != null)
-                                newCurrStates.add(new FullState<>(nextState, state.tokens, state.score));
-                            else
-                                bestResults.add(new Result(model.toMessage(state.tokens), state.score));
-                            return;
-                        }
-                        for (int j = 0; j < priorProbabilities.length; j++) {
-                            double probability = priorProbabilities[j] * posteriorProbabilities[j];
-                            if (probability == 0)
-                                continue;
-                            List<Integer> newTokens = new ArrayList<>(state.tokens.size() + 1);
-                            newTokens.addAll(state.tokens);
-                            newTokens.add(j);
-                            double newScore = state.score + Math.log(probability) + 2;
-                            if (nextState != null)
-                                newNextStates.add(new FullState<>(nextState, newTokens, newScore));
-                            else
-                                bestResults.add(new Result(model.toMessage(newTokens), newScore));
-                        }
-                    });
+            double scoreThreshold = Math.max(beamScoreThreshold(currStates), bestResults.minScore());
+            int numChunks = parameters.parallel()
+                    ? Math.min(currStates.size() / MIN_CHUNK_SIZE, 4 * ForkJoinPool.getCommonPoolParallelism())
+                    : 1;
+            if (numChunks <= 1)
+                expand(
+                        currStates,
+                        scoreThreshold,
+                        transitions,
+                        model,
+                        budgetTracker,
+                        new Expansion<>(newCurrStates, nextStates, bestResults));
+            else {
+                // Each chunk gets its own buffers, which are concatenated in order so that the next layer is the
+                // same as if the chunks were expanded sequentially
+                List<FullState<State>> states = currStates;
+                List<Expansion<State>> expansions = IntStream.range(0, numChunks)
+                        .parallel()
+                        .mapToObj(chunk -> {
+                            Expansion<State> expansion = new Expansion<>(
+                                    new ArrayList<>(), new ArrayList<>(), new TopResults(parameters.maxNumResults()));
+                            expand(
+                                    states.subList(
+                                            chunk * states.size() / numChunks,
+                                            (chunk + 1) * states.size() / numChunks),
+                                    scoreThreshold,
+                                    transitions,
+                                    model,
+                                    budgetTracker,
+                                    expansion);
+                            return expansion;
+                        })
+                        .toList();
+                for (Expansion<State> expansion : expansions) {
+                    newCurrStates.addAll(expansion.currStates);
+                    nextStates.addAll(expansion.nextStates);
+                    bestResults.addAll(expansion.results);
                 }
+            }
+            if (budgetTracker.isExhausted())
+                break;
             currStates = newCurrStates;
             if (currStates.isEmpty() || nextStates.size() > 1000000) {
                 currStates = nextStates;
                 nextStates = new ArrayList<>();
             }
-            while (bestResults.size() > MAX_NUM_RESULTS)
-                bestResults.pollLast();
         }
-        return StreamEx.of(bestResults.stream())
+        List<Result> results = StreamEx.of(bestResults.toList())
                 .distinct(Result::message)
                 .toList();
+        return new AllResults(results, budgetTracker.isExhausted() || !currStates.isEmpty());
     }
 
-    private double approxScoreThreshold(List<FullState<State>> states) {
-        if (states.size() < SEARCH_LIMIT)
-            return Double.NEGATIVE_INFINITY;
-        double[] samples = new double[SEARCH_LIMIT];
-        for (int i = 0; i < SEARCH_LIMIT; i++)
-            samples[i] = states.get(random.nextInt(states.size())).score;
-        Arrays.sort(samples);
-        return samples[(int) (SEARCH_LIMIT - (long) SEARCH_LIMIT * SEARCH_LIMIT / states.size())];
+    /**
+     * Expands all states with at least the given score, or until the budget runs out. States that are reached without
+     * emitting a token are added to currStates, and states that are reached by emitting a token are added to
+     * nextStates.
+     */
+    private void expand(
+            List<FullState<State>> states,
+            double scoreThreshold,
+            Transitions<State> transitions,
+            PriorModel model,
+            BudgetTracker budgetTracker,
+            Expansion<State> expansion) {
+        for (FullState<State> state : states)
+            if (state.score >= scoreThreshold) {
+                if (!budgetTracker.tryExpand())
+                    return;
+                double[] priorProbabilities = model.getProbabilities(state.context);
+                transitions.accept(state.state, (nextState, emission) -> {
+                    if (emission == null) {
+                        if (nextState != null)
+                            expansion.currStates.add(
+                                    new FullState<>(nextState, state.tokens, state.context, state.score));
+                        else
+                            expansion.results.add(
+                                    new Result(model.toMessage(TokenNode.toList(state.tokens)), state.score));
+                        return;
+                    }
+                    for (int mask = emission.mask(); mask != 0; mask &= mask - 1) {
+                        int j = Integer.numberOfTrailingZeros(mask);
+                        double probability = priorProbabilities[j] * emission.probability(j);
+                        if (probability == 0)
+                            continue;
+                        TokenNode newTokens = new TokenNode(state.tokens, j);
+                        double newScore = state.score + Math.log(probability) + 2;
+                        if (nextState != null)
+                            expansion.nextStates.add(
+                                    new FullState<>(nextState, newTokens, model.advance(state.context, j), newScore));
+                        else
+                            expansion.results.add(new Result(model.toMessage(TokenNode.toList(newTokens)), newScore));
+                    }
+                });
+            }
+    }
+
+    /**
+     * Keeps only the best maxStatesPerContext states with each (state, model context), in their original order.
+     */
+    private List<FullState<State>> mergeEquivalentStates(List<FullState<State>> states, PriorModel model) {
+        Map<MergeKey<State>, List<FullState<State>>> statesByKey = new HashMap<>();
+        for (FullState<State> state : states)
+            statesByKey.computeIfAbsent(
+                    new MergeKey<>(state.state, state.context),
+                    key -> new ArrayList<>(1)).add(state);
+        if (statesByKey.size() == states.size())
+            return states;
+
+        Set<FullState<State>> keptStates = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<FullState<State>> equivalentStates : statesByKey.values()) {
+            if (equivalentStates.size() > parameters.maxStatesPerContext()) {
+                equivalentStates.sort(Comparator.comparingDouble((FullState<State> state) -> state.score).reversed());
+                equivalentStates = equivalentStates.subList(0, parameters.maxStatesPerContext());
+            }
+            keptStates.addAll(equivalentStates);
+        }
+        List<FullState<State>> mergedStates = new ArrayList<>(keptStates.size());
+        for (FullState<State> state : states)
+            if (keptStates.contains(state))
+                mergedStates.add(state);
+        return mergedStates;
     }
 
-    private double minScoreThreshold(TreeSet<Result> bestFinalStates) {
-        if (bestFinalStates.size() < MAX_NUM_RESULTS)
+    /**
+     * Returns the score of the beamWidth-th best state, so that only the best states (and any ties) are expanded.
+     */
+    private double beamScoreThreshold(List<FullState<State>> states) {
+        if (states.size() <= parameters.beamWidth())
             return Double.NEGATIVE_INFINITY;
-        return bestFinalStates.last().score();
+        double[] scores = new double[states.size()];
+        for (int i = 0; i < scores.length; i++)
+            scores[i] = states.get(i).score;
+        return kthLargest(scores, parameters.beamWidth());
     }
 
-    record FullState<State>(State state, List<Integer> tokens, double score) {}
+    /**
+     * Quickselect for the k-th largest value (1-indexed). Reorders the given array.
+     */
+    static double kthLargest(double[] values, int k) {
+        int target = values.length - k;
+        int lo = 0, hi = values.length - 1;
+        while (lo < hi) {
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (values[i] < pivot)
+                    i++;
+                while (values[j] > pivot)
+                    j--;
+                if (i <= j) {
+                    double temp = values[i];
+                    values[i++] = values[j];
+                    values[j--] = temp;
+                }
+            }
+            if (target <= j)
+                hi = j;
+            else if (target >= i)
+                lo = i;
+            else
+                break;
+        }
+        return values[target];
+    }
+
+    /**
+     * The tokens emitted so far, stored as a pointer to the sequence without its last token. States that were expanded
+     * from a common ancestor share that ancestor's prefix, so each state only costs a constant amount of memory
+     * regardless of the message length. A null TokenNode is the empty sequence.
+     */
+    record TokenNode(@Nullable TokenNode prefix, int token, int length) {
+
+        TokenNode(@Nullable TokenNode prefix, int token) {
+            this(prefix, token, prefix == null ? 1 : prefix.length + 1);
+        }
+
+        static List<Integer> toList(@Nullable TokenNode node) {
+            if (node == null)
+                return List.of();
+            int[] tokens = new int[node.length];
+            for (TokenNode n = node; n != null; n = n.prefix)
+                tokens[n.length - 1] = n.token;
+            return Ints.asList(tokens);
+        }
+    }
+
+    /**
+     * @param context the model's context of the tokens
+     */
+    record FullState<State>(State state, @Nullable TokenNode tokens, long context, double score) {}
+
+    record MergeKey<State>(State state, long context) {}
+
+    record Expansion<State>(List<FullState<State>> currStates, List<FullState<State>> nextStates, TopResults results) {}
 }
@@ -0,0 +1,136 @@
+package com.kyc.snap.solver;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+import com.kyc.snap.solver.GenericSolver.TransitionConsumer;
+import com.kyc.snap.solver.GenericSolver.Transitions;
+import com.kyc.snap.solver.PregexSolver.State;
+import com.kyc.snap.solver.TransitionCache.Transition;
+
+/**
+ * The state machine of a pregex, where each distinct {@link State} is numbered the first time it is reached and its
+ * transitions are computed at most once. Anagrams and similar constructs have too many states to number up front,
+ * but the search only reaches a small fraction of them, and reaches most of those many times.
+ *
+ * <p>Once a state's transitions are compiled, expanding it again only reads arrays, without locking, so that parallel
+ * expansions don't contend. Only numbering a new state takes a lock. Each id is boxed once so that the solver can use
+ * ids as states without allocating. The transitions themselves come from a {@link TransitionCache} that is shared by
+ * all queries, so states that an earlier query reached don't need to be expanded again.
+ */
+class PregexAutomaton implements Transitions<Integer> {
+
+    private static final int END = -1;
+
+    private final TransitionCache transitionCache;
+    private final Map<State, Integer> ids = new ConcurrentHashMap<>();
+    /**
+     * The node of each id. Nodes are only added while holding the lock, and the array is replaced by a larger copy
+     * when it's full, so readers without the lock may see an older array, but every node that they have the id of.
+     */
+    private volatile AtomicReferenceArray<Node> nodes = new AtomicReferenceArray<>(16);
+    private volatile int numStates = 0;
+
+    PregexAutomaton(TransitionCache transitionCache) {
+        this.transitionCache = transitionCache;
+    }
+
+    /**
+     * Returns the id of the given state, numbering it if it hasn't been reached before.
+     */
+    Integer id(State state) {
+        Integer id = ids.get(state);
+        return id != null ? id : addState(state);
+    }
+
+    State state(int id) {
+        return nodes.get(id).state;
+    }
+
+    int numStates() {
+        return numStates;
+    }
+
+    @Override
+    public void accept(Integer id, TransitionConsumer<Integer> consumer) {
+        CompiledTransitions compiled = compile(id);
+        for (int i = 0; i < compiled.nextIds.length; i++)
+            consumer.add(
+                    compiled.nextIds[i] == END ? null : nodes.get(compiled.nextIds[i]).id,
+                    compiled.emissions[i]);
+    }
+
+    /**
+     * Same as {@link PregexSolver#maxRemainingScore}, but computed at most once for each state (or a few times if
+     * threads race, since the result is always the same).
+     */
+    double maxRemainingScore(Integer id) {
+        Node node = nodes.get(id);
+        double maxRemainingScore = node.maxRemainingScore;
+        if (Double.isNaN(maxRemainingScore))
+            node.maxRemainingScore = maxRemainingScore = PregexSolver.maxRemainingScore(node.state);
+        return maxRemainingScore;
+    }
+
+    private synchronized Integer addState(State state) {
+        Integer id = ids.get(state);
+        if (id == null) {
+            id = numStates;
+            AtomicReferenceArray<Node> currentNodes = nodes;
+            if (id == currentNodes.length()) {
+                AtomicReferenceArray<Node> newNodes = new AtomicReferenceArray<>(2 * id);
+                for (int i = 0; i < id; i++)
+                    newNodes.set(i, currentNodes.get(i));
+                nodes = currentNodes = newNodes;
+            }
+            currentNodes.set(id, new Node(state, id));
+            numStates = id + 1;
+            ids.put(state, id);
+        }
+        return id;
+    }
+
+    /**
+     * Compiles the transitions of the given state if they haven't been yet. Threads that race to compile the same
+     * state compute the same transitions, so the compiled transitions are published without a lock.
+     */
+    private CompiledTransitions compile(int id) {
+        Node node = nodes.get(id);
+        CompiledTransitions compiled = node.compiled;
+        if (compiled == null) {
+            List<Transition> transitions = transitionCache.getTransitions(node.state);
+            int[] nextIds = new int[transitions.size()];
+            Emission[] emissions = new Emission[transitions.size()];
+            for (int i = 0; i < transitions.size(); i++) {
+                Transition transition = transitions.get(i);
+                nextIds[i] = transition.nextState() == null ? END : id(transition.nextState());
+                emissions[i] = transition.emission();
+            }
+            node.compiled = compiled = new CompiledTransitions(nextIds, emissions);
+        }
+        return compiled;
+    }
+
+    private static class Node {
+
+        final State state;
+        final Integer id;
+        volatile CompiledTransitions compiled;
+        volatile double maxRemainingScore = Double.NaN;
+
+        Node(State state, Integer id) {
+            this.state = state;
+            this.id = id;
+        }
+    }
+
+    /**
+     * The transitions out of a state, where the i-th transition goes to nextIds[i] (or the end state if END) and emits
+     * emissions[i] (or nothing if null).
+     */
+    private record CompiledTransitions(int[] nextIds, @Nullable Emission[] emissions) {}
+}
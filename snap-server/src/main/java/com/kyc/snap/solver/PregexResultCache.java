@@ -0,0 +1,87 @@
+package com.kyc.snap.solver;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.kyc.snap.solver.GenericSolver.Result;
+
+/**
+ * Results of recent pregex queries, keyed by the canonical form of the query (see {@link PregexSolver}). Optionally
+ * saves the most frequently used entries to a file, so that they survive restarts.
+ */
+public class PregexResultCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PregexResultCache.class);
+
+    private final Cache<String, List<Result>> cache;
+    @Nullable private final File file;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param file if not null, the file that {@link #load} and {@link #save} use
+     */
+    public PregexResultCache(long maximumSize, Duration expireAfterWrite, @Nullable File file) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        this.file = file;
+    }
+
+    @Nullable
+    List<Result> get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    void put(String key, List<Result> results) {
+        cache.put(key, results);
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Adds all entries from the file, if there is one. If the file can't be read, the cache just starts empty.
+     */
+    public void load() {
+        if (file == null || !file.exists())
+            return;
+        try {
+            cache.putAll(mapper.readValue(file, new TypeReference<Map<String, List<Result>>>() {}));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to load pregex result cache from {}", file, e);
+        }
+    }
+
+    /**
+     * Writes the given number of most frequently used entries to the file, if there is one.
+     */
+    public void save(int maxNumEntries) {
+        if (file == null)
+            return;
+        Map<String, List<Result>> entries = cache.policy().eviction()
+                .map(eviction -> eviction.hottest(maxNumEntries))
+                .orElseGet(cache::asMap);
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            mapper.writeValue(file, entries);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
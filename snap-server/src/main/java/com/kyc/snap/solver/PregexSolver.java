@@ -1,14 +1,16 @@
 package com.kyc.snap.solver;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
@@ -29,15 +31,55 @@ import com.kyc.snap.antlr.PregexParser.SymbolContext;
 import com.kyc.snap.antlr.PregexParser.TermContext;
 import com.kyc.snap.antlr.PregexParser.TermsContext;
 import com.kyc.snap.antlr.PregexParser.WordBoundaryContext;
+import com.kyc.snap.solver.GenericSolver.AllResults;
+import com.kyc.snap.solver.GenericSolver.Budget;
 import com.kyc.snap.solver.GenericSolver.PriorModel;
 import com.kyc.snap.solver.GenericSolver.Result;
+import com.kyc.snap.solver.GenericSolver.ResultListener;
+import com.kyc.snap.solver.GenericSolver.SearchParameters;
 import com.kyc.snap.solver.GenericSolver.TransitionConsumer;
 
-public record PregexSolver(PriorModel model) {
+/**
+ * @param resultCache if not null, results of previous queries are returned from this cache. Queries that only differ
+ *                    cosmetically, e.g. in the order of anagram parts, share the same results.
+ */
+public record PregexSolver(PriorModel model, @Nullable PregexResultCache resultCache) {
+
+    public static final int MAX_BEAM_WIDTH = 100000;
+    public static final int MAX_NUM_RESULTS = 1000;
+
+    /**
+     * Transitions only depend on the state, so they are shared by all solvers and queries.
+     */
+    private static final TransitionCache TRANSITION_CACHE =
+            new TransitionCache(PregexSolver::getTransitions, 2000000);
+
+    public static CacheStats transitionCacheStats() {
+        return TRANSITION_CACHE.stats();
+    }
+
+    public PregexSolver(PriorModel model) {
+        this(model, null);
+    }
 
     public List<Result> solve(String pregex, List<Integer> wordLengths) {
+        return solve(pregex, wordLengths, SearchParameters.DEFAULT);
+    }
+
+    public List<Result> solve(String pregex, List<Integer> wordLengths, SearchParameters parameters) {
+        return solve(pregex, wordLengths, parameters, Budget.UNLIMITED, (result, rank) -> {}).results();
+    }
+
+    public AllResults solve(
+            String pregex,
+            List<Integer> wordLengths,
+            SearchParameters parameters,
+            Budget budget,
+            ResultListener listener) {
         if (pregex.length() > 500)
             throw new IllegalArgumentException("Query too long");
+        if (parameters.beamWidth() > MAX_BEAM_WIDTH || parameters.maxNumResults() > MAX_NUM_RESULTS)
+            throw new IllegalArgumentException("Search parameters too large");
 
         TermsContext termsContext = new PregexParser(
                 new CommonTokenStream(new PregexLexer(CharStreams.fromString(pregex)))).terms();
@@ -51,10 +93,35 @@ public record PregexSolver(PriorModel model) {
         if (complexity(start) > 2000)
             throw new IllegalArgumentException("Query too complex");
 
-        return new GenericSolverImpl<State>().solve(
-                start,
-                PregexSolver::getTransitions,
-                model);
+        // Parallel and sequential searches return the same results, so they share entries
+        String cacheKey = canonicalize(start) + " " + new SearchParameters(
+                parameters.beamWidth(),
+                parameters.maxNumResults(),
+                false,
+                parameters.maxStatesPerContext(),
+                parameters.bestFirst());
+        if (resultCache != null) {
+            List<Result> cachedResults = resultCache.get(cacheKey);
+            if (cachedResults != null) {
+                for (int i = 0; i < cachedResults.size(); i++)
+                    listener.onResult(cachedResults.get(i), i + 1);
+                return new AllResults(cachedResults, false);
+            }
+        }
+
+        PregexAutomaton automaton = new PregexAutomaton(TRANSITION_CACHE);
+        Integer startId = automaton.id(TRANSITION_CACHE.intern(start));
+        // Repetitions of letters have no bound, so every unfinished state would outrank every result, and best-first
+        // search would never return
+        GenericSolver<Integer> solver =
+                parameters.bestFirst() && automaton.maxRemainingScore(startId) < Double.POSITIVE_INFINITY
+                        ? new BestFirstSolver<>(parameters, automaton::maxRemainingScore)
+                        : new GenericSolverImpl<>(parameters);
+        AllResults results = solver.solve(startId, automaton, model, budget, listener);
+        // Results that were cut short depend on the budget (and timing), so they can't be reused
+        if (resultCache != null && !results.hitLimit())
+            resultCache.put(cacheKey, results.results());
+        return results;
     }
 
     sealed interface State {}
@@ -125,6 +192,61 @@ public record PregexSolver(PriorModel model) {
         throw new IllegalStateException();
     }
 
+    /**
+     * Returns an equivalent state that is the same for queries that only differ cosmetically: nested and singleton
+     * lists are flattened, and the parts of anagrams and choices are sorted.
+     */
+    static State canonicalize(State genericState) {
+        if (genericState instanceof AnagramState state)
+            return new AnagramState(canonicalizeSorted(state.children), state.currentChild, state.didPrevChildEmit);
+        if (genericState instanceof AndState state)
+            return new AndState(canonicalize(state.child1), canonicalize(state.child2), state.require1);
+        if (genericState instanceof ChainState state)
+            return new ChainState(canonicalize(state.children), state.started);
+        if (genericState instanceof ChoiceState state) {
+            if (state.currentChild == -1 && state.children.size() == 1)
+                return canonicalize(state.children.get(0));
+            return state.currentChild == -1
+                    ? new ChoiceState(canonicalizeSorted(state.children), -1)
+                    : new ChoiceState(canonicalize(state.children), state.currentChild);
+        }
+        if (genericState instanceof CountState state)
+            return new CountState(canonicalize(state.originalChild), canonicalize(state.child), state.count);
+        if (genericState instanceof InterleaveState state)
+            return new InterleaveState(
+                    canonicalize(state.children1), canonicalize(state.children2), state.processingChild);
+        if (genericState instanceof ListState state) {
+            List<State> children = new ArrayList<>();
+            for (State child : canonicalize(state.children))
+                if (child instanceof ListState list)
+                    children.addAll(list.children);
+                else
+                    children.add(child);
+            return children.size() == 1 ? children.get(0) : new ListState(children);
+        }
+        if (genericState instanceof MaybeState state)
+            return new MaybeState(canonicalize(state.child), state.processingChild);
+        if (genericState instanceof OrMoreState state)
+            return new OrMoreState(
+                    canonicalize(state.originalChild), canonicalize(state.child), state.atLeast, state.processingChild);
+        if (genericState instanceof QuoteState state)
+            return new QuoteState(canonicalize(state.children));
+        if (genericState instanceof WordLengthsState state)
+            return new WordLengthsState(canonicalize(state.child), state.wordLengths);
+        return genericState;
+    }
+
+    private static List<State> canonicalize(List<State> states) {
+        return states.stream().map(PregexSolver::canonicalize).toList();
+    }
+
+    private static List<State> canonicalizeSorted(List<State> states) {
+        return states.stream()
+                .map(PregexSolver::canonicalize)
+                .sorted(Comparator.comparing(State::toString))
+                .toList();
+    }
+
     private int complexity(State genericState) {
         if (genericState instanceof SymbolState state)
             return state.c >= 'A' && state.c <= 'Z' ? 1 : 'Z' - 'A';
@@ -157,6 +279,117 @@ public record PregexSolver(PriorModel model) {
         throw new IllegalStateException();
     }
 
+    /**
+     * Each emitted token adds log(prior * posterior) + 2 to the score, which is at most log(posterior) + 2 since the
+     * prior is at most 1. So the remaining score is bounded by the best such sum over all ways to finish the state,
+     * which is computed from the structure of the state.
+     */
+    static double maxRemainingScore(State state) {
+        Bound bound = maxRemaining(state);
+        return bound.letters + 2 * bound.delimiters;
+    }
+
+    /**
+     * An upper bound on the score added by the letters that a state can still emit, and on the number of word
+     * delimiters (each of which adds at most 2). The two are kept separate because quotes and word lengths only limit
+     * delimiters.
+     */
+    record Bound(double letters, double delimiters) {
+
+        static final Bound ZERO = new Bound(0, 0);
+
+        Bound plus(Bound other) {
+            return new Bound(letters + other.letters, delimiters + other.delimiters);
+        }
+
+        Bound times(int n) {
+            return n == 0 ? ZERO : new Bound(n * letters, n * delimiters);
+        }
+
+        Bound max(Bound other) {
+            return new Bound(Math.max(letters, other.letters), Math.max(delimiters, other.delimiters));
+        }
+
+        Bound min(Bound other) {
+            return new Bound(Math.min(letters, other.letters), Math.min(delimiters, other.delimiters));
+        }
+
+        /**
+         * Returns the bound for repeating this any number of times, but at least the given number of times.
+         */
+        Bound repeated(int atLeast) {
+            return new Bound(
+                    letters > 0 ? Double.POSITIVE_INFINITY : times(atLeast).letters,
+                    delimiters > 0 ? Double.POSITIVE_INFINITY : 0);
+        }
+    }
+
+    private static Bound maxRemaining(@Nullable State genericState) {
+        if (genericState == null)
+            return Bound.ZERO;
+        if (genericState instanceof SymbolState state) {
+            if (state.used)
+                return new Bound(0, 1);
+            Emission emission;
+            if (state.c >= 'A' && state.c <= 'Z')
+                emission = EnglishTokens.is(state.c);
+            else if (state.c >= 'a' && state.c <= 'z')
+                emission = EnglishTokens.probably(Character.toUpperCase(state.c));
+            else
+                emission = EnglishTokens.wildcard();
+            return new Bound(Math.log(emission.maxProbability()) + 2, 1);
+        }
+        if (genericState instanceof AnagramState state)
+            return sumMaxRemaining(state.children);
+        if (genericState instanceof AndState state)
+            return maxRemaining(state.child1).min(maxRemaining(state.child2));
+        if (genericState instanceof ChainState state)
+            return sumMaxRemaining(state.children);
+        if (genericState instanceof ChoiceState state) {
+            if (state.currentChild == -2)
+                return Bound.ZERO;
+            if (state.currentChild == -1)
+                return state.children.stream()
+                        .map(PregexSolver::maxRemaining)
+                        .reduce(Bound::max)
+                        .orElse(Bound.ZERO);
+            return maxRemaining(state.children.get(state.currentChild));
+        }
+        if (genericState instanceof CountState state) {
+            if (state.count == 0)
+                return Bound.ZERO;
+            return maxRemaining(state.child).plus(maxRemaining(state.originalChild).times(state.count - 1));
+        }
+        if (genericState instanceof InterleaveState state)
+            return sumMaxRemaining(state.children1).plus(sumMaxRemaining(state.children2));
+        if (genericState instanceof ListState state)
+            return sumMaxRemaining(state.children);
+        if (genericState instanceof MaybeState state)
+            return state.processingChild ? maxRemaining(state.child) : maxRemaining(state.child).max(Bound.ZERO);
+        if (genericState instanceof OrMoreState state) {
+            Bound originalBound = maxRemaining(state.originalChild);
+            return state.processingChild
+                    ? maxRemaining(state.child).plus(originalBound.repeated(Math.max(state.atLeast - 1, 0)))
+                    : originalBound.repeated(Math.max(state.atLeast, 0));
+        }
+        if (genericState instanceof QuoteState state)
+            return new Bound(sumMaxRemaining(state.children).letters, 0);
+        if (genericState instanceof WordBoundaryState)
+            return new Bound(0, 1);
+        if (genericState instanceof WordLengthsState state) {
+            int numLetters = state.wordLengths.stream().mapToInt(len -> len).sum();
+            return maxRemaining(state.child).min(new Bound(2 * numLetters, state.wordLengths.size()));
+        }
+        throw new IllegalStateException();
+    }
+
+    private static Bound sumMaxRemaining(List<State> states) {
+        Bound bound = Bound.ZERO;
+        for (State state : states)
+            bound = bound.plus(maxRemaining(state));
+        return bound;
+    }
+
     private static void getTransitions(State genericState, TransitionConsumer<State> transitions) {
         if (genericState instanceof SymbolState state) {
             if (state.used) {
@@ -188,42 +421,39 @@ public record PregexSolver(PriorModel model) {
                         transitions.add(new AnagramState(state.children, i, false), null);
                     }
             } else
-                getTransitions(state.children.get(state.currentChild), (nextState, tokenProbabilities) -> {
+                getTransitions(state.children.get(state.currentChild), (nextState, emission) -> {
                     transitions.add(
                             new AnagramState(
                                     replace(state.children, state.currentChild, nextState),
                                     nextState == null ? -1 : state.currentChild,
-                                    state.didPrevChildEmit || tokenProbabilities != null),
-                            tokenProbabilities);
+                                    state.didPrevChildEmit || emission != null),
+                            emission);
                 });
         }
         if (genericState instanceof AndState state) {
-            Multimap<State, double[]> transitions1 = ArrayListMultimap.create();
-            Multimap<State, double[]> transitions2 = ArrayListMultimap.create();
+            Multimap<State, Emission> transitions1 = ArrayListMultimap.create();
+            Multimap<State, Emission> transitions2 = ArrayListMultimap.create();
             if (state.child1 != null)
                 getTransitions(state.child1, transitions1::put);
             if (state.child2 != null)
                 getTransitions(state.child2, transitions2::put);
             if (state.child1 == null && state.child2 == null)
                 transitions.add(null, null);
-            transitions1.forEach((nextState, tokenProbabilities) -> {
+            transitions1.forEach((nextState, emission) -> {
                 // Optimization: if both children emit no token, only process the order child1 -> child2
-                if (tokenProbabilities == null && !state.require1)
+                if (emission == null && !state.require1)
                     transitions.add(new AndState(nextState, state.child2, false), null);
             });
-            transitions2.forEach((nextState, tokenProbabilities) -> {
-                if (tokenProbabilities == null)
+            transitions2.forEach((nextState, emission) -> {
+                if (emission == null)
                     transitions.add(new AndState(state.child1, nextState, true), null);
             });
-            transitions1.forEach((nextState1, tokenProbabilities1) -> {
-                transitions2.forEach((nextState2, tokenProbabilities2) -> {
-                    if (tokenProbabilities1 != null && tokenProbabilities2 != null) {
-                        double[] tokenProbabilities =
-                                Arrays.copyOf(tokenProbabilities1, tokenProbabilities1.length);
-                        for (int i = 0; i < tokenProbabilities1.length; i++)
-                            tokenProbabilities[i] *= tokenProbabilities2[i];
-                        if (Arrays.stream(tokenProbabilities).sum() > 0)
-                            transitions.add(new AndState(nextState1, nextState2, false), tokenProbabilities);
+            transitions1.forEach((nextState1, emission1) -> {
+                transitions2.forEach((nextState2, emission2) -> {
+                    if (emission1 != null && emission2 != null) {
+                        Emission emission = emission1.and(emission2);
+                        if (!emission.isEmpty())
+                            transitions.add(new AndState(nextState1, nextState2, false), emission);
                     }
                 });
             });
@@ -241,10 +471,10 @@ public record PregexSolver(PriorModel model) {
                     transitions.add(new ChainState(Lists.reverse(orderedChildren), true), null);
                 }
             } else
-                getTransitions(state.children.get(0), (nextState, tokenProbabilities) -> {
+                getTransitions(state.children.get(0), (nextState, emission) -> {
                     transitions.add(
                             new ChainState(replace(state.children, 0, nextState), true),
-                            tokenProbabilities);
+                            emission);
                 });
         }
         if (genericState instanceof ChoiceState state) {
@@ -254,27 +484,27 @@ public record PregexSolver(PriorModel model) {
                 for (int i = 0; i < state.children.size(); i++)
                     transitions.add(new ChoiceState(state.children, i), null);
             else
-                getTransitions(state.children.get(state.currentChild), (nextState, tokenProbabilities) -> {
+                getTransitions(state.children.get(state.currentChild), (nextState, emission) -> {
                     transitions.add(
                             new ChoiceState(
                                     replace(state.children, state.currentChild, nextState),
                                     nextState == null ? -2 : state.currentChild),
-                            tokenProbabilities);
+                            emission);
                 });
         }
         if (genericState instanceof CountState state) {
             if (state.count == 0)
                 transitions.add(null, null);
             else
-                getTransitions(state.child, (nextState, tokenProbabilities) -> {
+                getTransitions(state.child, (nextState, emission) -> {
                     if (nextState == null)
                         transitions.add(
                                 new CountState(state.originalChild, state.originalChild, state.count - 1),
-                                tokenProbabilities);
+                                emission);
                     else
                         transitions.add(
                                 new CountState(state.originalChild, nextState, state.count),
-                                tokenProbabilities);
+                                emission);
                 });
         }
         if (genericState instanceof InterleaveState state) {
@@ -286,70 +516,68 @@ public record PregexSolver(PriorModel model) {
                 if (!state.children2.isEmpty())
                     transitions.add(new InterleaveState(state.children1, state.children2, 2), null);
             } else if (state.processingChild == 1)
-                getTransitions(state.children1.get(0), (nextState, tokenProbabilities) -> {
+                getTransitions(state.children1.get(0), (nextState, emission) -> {
                     transitions.add(
                             new InterleaveState(
                                     replace(state.children1, 0, nextState),
                                     state.children2,
                                     nextState == null ? -1 : 1),
-                            tokenProbabilities);
+                            emission);
                 });
             else if (state.processingChild == 2)
-                getTransitions(state.children2.get(0), (nextState, tokenProbabilities) -> {
+                getTransitions(state.children2.get(0), (nextState, emission) -> {
                     transitions.add(
                             new InterleaveState(
                                     state.children1,
                                     replace(state.children2, 0, nextState),
                                     nextState == null ? -1 : 2),
-                            tokenProbabilities);
+                            emission);
                 });
         }
         if (genericState instanceof ListState state) {
             if (state.children.isEmpty())
                 transitions.add(null, null);
             else
-                getTransitions(state.children.get(0), (nextState, tokenProbabilities) -> {
+                getTransitions(state.children.get(0), (nextState, emission) -> {
                     transitions.add(
                             new ListState(replace(state.children, 0, nextState)),
-                            tokenProbabilities);
+                            emission);
                 });
         }
         if (genericState instanceof MaybeState state) {
             if (!state.processingChild)
                 transitions.add(null, null);
-            getTransitions(state.child, (nextState, tokenProbabilities) -> {
+            getTransitions(state.child, (nextState, emission) -> {
                 transitions.add(
                         nextState == null ? null : new MaybeState(nextState, true),
-                        tokenProbabilities);
+                        emission);
             });
         }
         if (genericState instanceof OrMoreState state) {
             if (!state.processingChild && state.atLeast <= 0)
                 transitions.add(null, null);
-            getTransitions(state.child, (nextState, tokenProbabilities) -> {
+            getTransitions(state.child, (nextState, emission) -> {
                 if (nextState == null)
                     transitions.add(
                             new OrMoreState(state.originalChild, state.originalChild, state.atLeast - 1, false),
-                            tokenProbabilities);
+                            emission);
                 else
                     transitions.add(
                             new OrMoreState(state.originalChild, nextState, state.atLeast, true),
-                            tokenProbabilities);
+                            emission);
             });
         }
         if (genericState instanceof QuoteState state) {
             if (state.children.isEmpty())
                 transitions.add(null, null);
             else
-                getTransitions(state.children.get(0), (nextState, tokenProbabilities) -> {
+                getTransitions(state.children.get(0), (nextState, emission) -> {
                     List<State> newChildren = replace(state.children, 0, nextState);
-                    if (tokenProbabilities == null) {
+                    if (emission == null) {
                         transitions.add(new QuoteState(newChildren), null);
                         return;
                     }
-                    double[] newTokenProbabilities = Arrays.copyOf(tokenProbabilities, tokenProbabilities.length);
-                    newTokenProbabilities[0] = 0;
-                    transitions.add(new QuoteState(newChildren), newTokenProbabilities);
+                    transitions.add(new QuoteState(newChildren), emission.restrict(EnglishTokens.LETTERS_MASK));
                 });
         }
         if (genericState instanceof WordBoundaryState) {
@@ -359,24 +587,19 @@ public record PregexSolver(PriorModel model) {
             if (state.wordLengths.isEmpty())
                 transitions.add(null, null);
             if (state.child != null)
-                getTransitions(state.child, (nextState, tokenProbabilities) -> {
-                    if (tokenProbabilities == null)
+                getTransitions(state.child, (nextState, emission) -> {
+                    if (emission == null)
                         transitions.add(new WordLengthsState(nextState, state.wordLengths), null);
                     else if (!state.wordLengths.isEmpty()) {
                         int len = state.wordLengths.get(0);
-                        if (len == 0) {
-                            double[] newTokenProbabilities = new double[tokenProbabilities.length];
-                            newTokenProbabilities[0] = tokenProbabilities[0];
+                        if (len == 0)
                             transitions.add(
                                     new WordLengthsState(nextState, state.wordLengths.stream().skip(1).toList()),
-                                    newTokenProbabilities);
-                        } else {
-                            double[] newTokenProbabilities = Arrays.copyOf(tokenProbabilities, tokenProbabilities.length);
-                            newTokenProbabilities[0] = 0;
+                                    emission.restrict(EnglishTokens.WORD_DELIMITER_MASK));
+                        else
                             transitions.add(
                                     new WordLengthsState(nextState, replace(state.wordLengths, 0, len - 1)),
-                                    newTokenProbabilities);
-                        }
+                                    emission.restrict(EnglishTokens.LETTERS_MASK));
                     }
                 });
         }
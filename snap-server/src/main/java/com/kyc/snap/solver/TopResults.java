@@ -0,0 +1,76 @@
+package com.kyc.snap.solver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.kyc.snap.solver.GenericSolver.Result;
+import com.kyc.snap.solver.GenericSolver.ResultListener;
+
+/**
+ * Keeps the highest scoring results seen so far, up to a fixed capacity. The worst kept result is at the head of a
+ * min-heap, so adding a result is O(log capacity) and results that can't make the cut are rejected in O(1).
+ */
+class TopResults {
+
+    static final Comparator<Result> WORST_FIRST = Comparator.comparingDouble(Result::score)
+            .thenComparing(Result::message);
+
+    private final int capacity;
+    @Nullable private final ResultListener listener;
+    private final PriorityQueue<Result> heap;
+    private final Set<Result> results = new HashSet<>();
+
+    TopResults(int capacity) {
+        this(capacity, null);
+    }
+
+    TopResults(int capacity, @Nullable ResultListener listener) {
+        this.capacity = capacity;
+        this.listener = listener;
+        this.heap = new PriorityQueue<>(capacity + 1, WORST_FIRST);
+    }
+
+    void add(Result result) {
+        if (heap.size() == capacity && WORST_FIRST.compare(result, heap.peek()) <= 0)
+            return;
+        if (!results.add(result))
+            return;
+        heap.add(result);
+        if (heap.size() > capacity)
+            results.remove(heap.poll());
+        if (listener != null) {
+            int rank = 1;
+            for (Result otherResult : heap)
+                if (WORST_FIRST.compare(otherResult, result) > 0)
+                    rank++;
+            listener.onResult(result, rank);
+        }
+    }
+
+    void addAll(TopResults other) {
+        for (Result result : other.heap)
+            add(result);
+    }
+
+    /**
+     * Returns the score that a new result must beat to be kept, or negative infinity if there is still room.
+     */
+    double minScore() {
+        return heap.size() < capacity ? Double.NEGATIVE_INFINITY : heap.peek().score();
+    }
+
+    /**
+     * Returns the kept results, best first.
+     */
+    List<Result> toList() {
+        List<Result> sortedResults = new ArrayList<>(heap);
+        sortedResults.sort(WORST_FIRST.reversed());
+        return sortedResults;
+    }
+}
@@ -0,0 +1,67 @@
+package com.kyc.snap.solver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.kyc.snap.solver.GenericSolver.Transitions;
+import com.kyc.snap.solver.PregexSolver.State;
+
+/**
+ * Remembers the transitions of recently expanded pregex states across queries, since queries in the same session often
+ * share sub-expressions (e.g. the same anagram with different word lengths). States and emission vectors in the cached
+ * transitions are interned, so equal ones are only stored once no matter how many queries reach them.
+ */
+class TransitionCache {
+
+    private final Transitions<State> transitions;
+    private final Cache<State, List<Transition>> cache;
+    private final Interner<State> stateInterner = Interners.newWeakInterner();
+    private final Interner<Emission> emissionInterner = Interners.newWeakInterner();
+
+    TransitionCache(Transitions<State> transitions, long maxNumTransitions) {
+        this.transitions = transitions;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxNumTransitions)
+                .<State, List<Transition>>weigher((state, stateTransitions) -> stateTransitions.size() + 1)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the given state, or an equal state that was seen before.
+     */
+    State intern(State state) {
+        return stateInterner.intern(state);
+    }
+
+    List<Transition> getTransitions(State state) {
+        return cache.get(state, key -> {
+            List<Transition> stateTransitions = new ArrayList<>();
+            transitions.accept(key, (nextState, emission) -> stateTransitions.add(new Transition(
+                    nextState == null ? null : intern(nextState),
+                    emission == null ? null : emissionInterner.intern(emission))));
+            return stateTransitions;
+        });
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    long size() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * @param nextState the next state, or null for the end state
+     * @param emission  the emitted tokens, or null if no token is emitted
+     */
+    record Transition(@Nullable State nextState, @Nullable Emission emission) {}
+}
@@ -0,0 +1,499 @@
+package com.kyc.snap.words;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * A dictionary stored in a compact binary file that is memory-mapped instead of parsed, so that loading it is nearly
+ * instant and its contents don't take up heap space. The maps returned by this class are read-only views of the file.
+ *
+ * <p>All words (including words that only appear in word pairs) are stored once, in sorted order, in a table of
+ * strings, and are referred to by their index in that table. The word pairs are stored as a compressed sparse row
+ * matrix, i.e. the second words of all pairs sorted by first word, with the start of each first word's row.
+ *
+ * <pre>
+ * header:             magic, version, numStrings, numWords, numPairs, numStringBytes (ints)
+ * wordFrequencies:    long[numWords]
+ * pairFrequencies:    long[numPairs]
+ * stringOffsets:      int[numStrings + 1], where string i is stringBytes[stringOffsets[i], stringOffsets[i + 1])
+ * wordIds:            int[numWords], the string index of each word in the dictionary, in sorted order
+ * pairStarts:         int[numStrings + 1], where the pairs starting with string i are
+ *                     [pairStarts[i], pairStarts[i + 1])
+ * pairIds:            int[numPairs], the string index of the second word of each pair
+ * stringBytes:        byte[numStringBytes], all strings in ISO-8859-1
+ * </pre>
+ */
+public class CompiledDictionary implements Dictionary {
+
+    private static final int MAGIC = 0x534e4450;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6 * Integer.BYTES;
+    private static final SortedMap<String, Long> EMPTY = Collections.emptySortedMap();
+
+    private final int numStrings;
+    private final LongBuffer wordFrequencies;
+    private final LongBuffer pairFrequencies;
+    private final IntBuffer stringOffsets;
+    private final IntBuffer wordIds;
+    private final IntBuffer pairStarts;
+    private final IntBuffer pairIds;
+    private final ByteBuffer stringBytes;
+    private final SortedMap<String, Long> wordFrequenciesView;
+    private final Map<String, SortedMap<String, Long>> biWordFrequenciesView = new BiWordFrequencies();
+
+    private CompiledDictionary(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Not a compiled dictionary");
+        numStrings = buffer.getInt(8);
+        int numWords = buffer.getInt(12);
+        int numPairs = buffer.getInt(16);
+        int numStringBytes = buffer.getInt(20);
+
+        int position = HEADER_SIZE;
+        wordFrequencies = buffer.slice(position, numWords * Long.BYTES).asLongBuffer();
+        position += numWords * Long.BYTES;
+        pairFrequencies = buffer.slice(position, numPairs * Long.BYTES).asLongBuffer();
+        position += numPairs * Long.BYTES;
+        stringOffsets = buffer.slice(position, (numStrings + 1) * Integer.BYTES).asIntBuffer();
+        position += (numStrings + 1) * Integer.BYTES;
+        wordIds = buffer.slice(position, numWords * Integer.BYTES).asIntBuffer();
+        position += numWords * Integer.BYTES;
+        pairStarts = buffer.slice(position, (numStrings + 1) * Integer.BYTES).asIntBuffer();
+        position += (numStrings + 1) * Integer.BYTES;
+        pairIds = buffer.slice(position, numPairs * Integer.BYTES).asIntBuffer();
+        position += numPairs * Integer.BYTES;
+        stringBytes = buffer.slice(position, numStringBytes);
+
+        wordFrequenciesView = new RangeMap(0, numWords, wordIds::get, wordFrequencies::get);
+    }
+
+    public static CompiledDictionary load(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new CompiledDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the given dictionary to the given file in the compiled format. The file is replaced atomically, so
+     * concurrent readers never see a partially written file.
+     */
+    public static void write(
+            SortedMap<String, Long> wordFrequencies,
+            Map<String, SortedMap<String, Long>> biWordFrequencies,
+            File file) {
+        TreeSet<String> strings = new TreeSet<>(wordFrequencies.keySet());
+        biWordFrequencies.forEach((word, nextWordFrequencies) -> {
+            strings.add(word);
+            strings.addAll(nextWordFrequencies.keySet());
+        });
+        Map<String, Integer> ids = new HashMap<>();
+        for (String string : strings)
+            ids.put(string, ids.size());
+        int numPairs = biWordFrequencies.values().stream().mapToInt(Map::size).sum();
+        byte[][] encodedStrings = strings.stream()
+                .map(string -> string.getBytes(StandardCharsets.ISO_8859_1))
+                .toArray(byte[][]::new);
+
+        try {
+            File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            try (DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(strings.size());
+                out.writeInt(wordFrequencies.size());
+                out.writeInt(numPairs);
+                out.writeInt(Arrays.stream(encodedStrings).mapToInt(bytes -> bytes.length).sum());
+                for (long frequency : wordFrequencies.values())
+                    out.writeLong(frequency);
+                for (String string : strings)
+                    for (long frequency : biWordFrequencies.getOrDefault(string, EMPTY).values())
+                        out.writeLong(frequency);
+                int offset = 0;
+                out.writeInt(offset);
+                for (byte[] bytes : encodedStrings)
+                    out.writeInt(offset += bytes.length);
+                for (String word : wordFrequencies.keySet())
+                    out.writeInt(ids.get(word));
+                int pairStart = 0;
+                out.writeInt(pairStart);
+                for (String string : strings)
+                    out.writeInt(pairStart += biWordFrequencies.getOrDefault(string, EMPTY).size());
+                for (String string : strings)
+                    for (String nextWord : biWordFrequencies.getOrDefault(string, EMPTY).keySet())
+                        out.writeInt(ids.get(nextWord));
+                for (byte[] bytes : encodedStrings)
+                    out.write(bytes);
+            }
+            Files.move(
+                    tempFile.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public SortedMap<String, Long> getWordFrequencies() {
+        return wordFrequenciesView;
+    }
+
+    @Override
+    public Map<String, SortedMap<String, Long>> getBiWordFrequencies() {
+        return biWordFrequenciesView;
+    }
+
+    /**
+     * Returns the frequencies of all words, and of the words that only appear as the second word of a pair (with
+     * frequency 0), in sorted order. The strings are already stored in sorted order, so this is a view of the file
+     * that only allocates an index of the included strings, instead of merging the pairs into a copy of the words.
+     */
+    public SortedMap<String, Long> getWordAndNextWordFrequencies() {
+        long[] frequencies = new long[numStrings];
+        boolean[] included = new boolean[numStrings];
+        for (int i = 0; i < pairIds.limit(); i++)
+            included[pairIds.get(i)] = true;
+        for (int i = 0; i < wordIds.limit(); i++) {
+            included[wordIds.get(i)] = true;
+            frequencies[wordIds.get(i)] = wordFrequencies.get(i);
+        }
+        int[] ids = IntStream.range(0, numStrings).filter(id -> included[id]).toArray();
+        return new RangeMap(0, ids.length, i -> ids[i], i -> frequencies[ids[i]]);
+    }
+
+    /**
+     * Looks up the pairs that start with the given word directly in its row of the pair index, and binary searches that
+     * row for the second words with the given prefix.
+     */
+    @Override
+    public SortedMap<String, Long> getWordFrequencies(String prevWord, String prefix) {
+        int prevWordId = findString(prevWord);
+        if (prevWordId == -1)
+            return EMPTY;
+        int start = pairStarts.get(prevWordId);
+        int end = pairStarts.get(prevWordId + 1);
+        return new RangeMap(
+                pairsBound(start, end, prefix, false),
+                pairsBound(start, end, prefix, true),
+                pairIds::get,
+                pairFrequencies::get);
+    }
+
+    /**
+     * Returns the id of the given word, or -1 if it isn't in the dictionary or in any pair.
+     */
+    public int wordId(String word) {
+        return findString(word);
+    }
+
+    /**
+     * Adds the frequency of each next letter after the given prefix, among the second words of the pairs that start
+     * with the word with the given id, to the given array, where index 0 is the end of the word and index i is the i-th
+     * letter of the alphabet. This is the same as iterating {@link #getWordFrequencies(String, String)}, but doesn't
+     * decode any strings.
+     */
+    public void addNextLetterFrequencies(int prevWordId, String prefix, double[] frequencies) {
+        if (prevWordId == -1)
+            return;
+        int start = pairStarts.get(prevWordId);
+        int end = pairStarts.get(prevWordId + 1);
+        int length = prefix.length();
+        int last = pairsBound(start, end, prefix, true);
+        for (int i = pairsBound(start, end, prefix, false); i < last; i++) {
+            int id = pairIds.get(i);
+            int offset = stringOffsets.get(id);
+            if (stringOffsets.get(id + 1) - offset == length)
+                frequencies[0] += pairFrequencies.get(i);
+            else {
+                int letter = stringBytes.get(offset + length);
+                if (letter >= 'A' && letter <= 'Z')
+                    frequencies[letter - '@'] += pairFrequencies.get(i);
+            }
+        }
+    }
+
+    private String string(int id) {
+        int start = stringOffsets.get(id);
+        byte[] bytes = new byte[stringOffsets.get(id + 1) - start];
+        stringBytes.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compares the string with the given id to the given string, without decoding it.
+     */
+    private int compare(int id, String s) {
+        int start = stringOffsets.get(id);
+        int length = stringOffsets.get(id + 1) - start;
+        for (int i = 0; i < length && i < s.length(); i++) {
+            int diff = (stringBytes.get(start + i) & 0xff) - s.charAt(i);
+            if (diff != 0)
+                return diff;
+        }
+        return length - s.length();
+    }
+
+    /**
+     * Compares the string with the given id to the given prefix, where all strings that start with the prefix are equal
+     * to it.
+     */
+    private int comparePrefix(int id, String prefix) {
+        int start = stringOffsets.get(id);
+        int length = stringOffsets.get(id + 1) - start;
+        for (int i = 0; i < length && i < prefix.length(); i++) {
+            int diff = (stringBytes.get(start + i) & 0xff) - prefix.charAt(i);
+            if (diff != 0)
+                return diff;
+        }
+        return length < prefix.length() ? -1 : 0;
+    }
+
+    /**
+     * Returns the index of the first pair in [start, end) whose second word starts with the given prefix (or is after
+     * all such words, if after is true).
+     */
+    private int pairsBound(int start, int end, String prefix, boolean after) {
+        int lo = start, hi = end;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = comparePrefix(pairIds.get(mid), prefix);
+            if (cmp < 0 || after && cmp == 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the id of the given string, or -1 if it isn't in the string table.
+     */
+    private int findString(String s) {
+        int lo = 0, hi = numStrings;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, s) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < numStrings && compare(lo, s) == 0 ? lo : -1;
+    }
+
+    /**
+     * A read-only view of the entries [start, end) of a sorted list of (string id, frequency).
+     */
+    private class RangeMap extends AbstractMap<String, Long> implements SortedMap<String, Long> {
+
+        private final int start;
+        private final int end;
+        private final IntUnaryOperator ids;
+        private final IntToLongFunction frequencies;
+
+        RangeMap(int start, int end, IntUnaryOperator ids, IntToLongFunction frequencies) {
+            this.start = start;
+            this.end = end;
+            this.ids = ids;
+            this.frequencies = frequencies;
+        }
+
+        /**
+         * Returns the index of the first entry that is at least the given key.
+         */
+        private int lowerBound(String key) {
+            int lo = start, hi = end;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(ids.applyAsInt(mid), key) < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        @Override
+        public Long get(Object key) {
+            if (!(key instanceof String s))
+                return null;
+            int index = lowerBound(s);
+            return index < end && compare(ids.applyAsInt(index), s) == 0 ? frequencies.applyAsLong(index) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return null;
+        }
+
+        @Override
+        public SortedMap<String, Long> subMap(String fromKey, String toKey) {
+            int from = lowerBound(fromKey);
+            return new RangeMap(from, Math.max(from, lowerBound(toKey)), ids, frequencies);
+        }
+
+        @Override
+        public SortedMap<String, Long> headMap(String toKey) {
+            return new RangeMap(start, lowerBound(toKey), ids, frequencies);
+        }
+
+        @Override
+        public SortedMap<String, Long> tailMap(String fromKey) {
+            return new RangeMap(lowerBound(fromKey), end, ids, frequencies);
+        }
+
+        @Override
+        public String firstKey() {
+            if (start == end)
+                throw new NoSuchElementException();
+            return string(ids.applyAsInt(start));
+        }
+
+        @Override
+        public String lastKey() {
+            if (start == end)
+                throw new NoSuchElementException();
+            return string(ids.applyAsInt(end - 1));
+        }
+
+        @Override
+        public Set<Entry<String, Long>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, Long>> iterator() {
+                    return new Iterator<>() {
+                        int index = start;
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < end;
+                        }
+
+                        @Override
+                        public Entry<String, Long> next() {
+                            if (index >= end)
+                                throw new NoSuchElementException();
+                            Entry<String, Long> entry = new SimpleImmutableEntry<>(
+                                    string(ids.applyAsInt(index)), frequencies.applyAsLong(index));
+                            index++;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return end - start;
+                }
+            };
+        }
+    }
+
+    /**
+     * A read-only view of the word pairs, from each first word to the frequencies of all second words.
+     */
+    private class BiWordFrequencies extends AbstractMap<String, SortedMap<String, Long>> {
+
+        @Override
+        public SortedMap<String, Long> get(Object key) {
+            if (!(key instanceof String s))
+                return null;
+            int id = findString(s);
+            return id == -1 ? null : row(id);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, SortedMap<String, Long>>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, SortedMap<String, Long>>> iterator() {
+                    return new Iterator<>() {
+                        int id = nextRow(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return id < numStrings;
+                        }
+
+                        @Override
+                        public Entry<String, SortedMap<String, Long>> next() {
+                            if (id >= numStrings)
+                                throw new NoSuchElementException();
+                            Entry<String, SortedMap<String, Long>> entry =
+                                    new SimpleImmutableEntry<>(string(id), row(id));
+                            id = nextRow(id + 1);
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (int id = nextRow(0); id < numStrings; id = nextRow(id + 1))
+                        size++;
+                    return size;
+                }
+            };
+        }
+
+        /**
+         * Returns the pairs that start with the given string, or null if there are none.
+         */
+        private SortedMap<String, Long> row(int id) {
+            int start = pairStarts.get(id);
+            int end = pairStarts.get(id + 1);
+            return start == end ? null : new RangeMap(start, end, pairIds::get, pairFrequencies::get);
+        }
+
+        private int nextRow(int id) {
+            while (id < numStrings && pairStarts.get(id) == pairStarts.get(id + 1))
+                id++;
+            return id;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.kyc.snap.words;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Named dictionaries that are shared by all requests, so that each one (and anything built from it, like word search
+ * tries) is only loaded once. Ad-hoc word banks are also shared: word banks with the same words (after normalization)
+ * get the same dictionary instance.
+ */
+public class DictionaryRegistry {
+
+    public static final String ENGLISH = "english";
+    public static final String WIKIPEDIA_TITLES = "wikipedia";
+    public static final String PHONETIC_WORDS = "cmu";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DictionaryRegistry.class);
+
+    private final Map<String, Supplier<Dictionary>> dictionaries;
+    private final Set<Dictionary> loadedDictionaries = Sets.newConcurrentHashSet();
+    private final Cache<HashCode, Dictionary> wordBankDictionaries = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+    /**
+     * @param dictionaries the dictionaries by name, which are each loaded once, on first use or in {@link #warmUp}
+     */
+    public DictionaryRegistry(Map<String, Supplier<? extends Dictionary>> dictionaries) {
+        ImmutableMap.Builder<String, Supplier<Dictionary>> builder = ImmutableMap.builder();
+        dictionaries.forEach((name, dictionary) -> builder.put(name, Suppliers.memoize(() -> {
+            Dictionary loadedDictionary = dictionary.get();
+            loadedDictionaries.add(loadedDictionary);
+            return loadedDictionary;
+        })));
+        this.dictionaries = builder.build();
+    }
+
+    public Set<String> names() {
+        return dictionaries.keySet();
+    }
+
+    public Dictionary get(String name) {
+        Supplier<Dictionary> dictionary = dictionaries.get(name);
+        if (dictionary == null)
+            throw new IllegalArgumentException("Unknown dictionary");
+        return dictionary.get();
+    }
+
+    /**
+     * Returns whether the given dictionary is one of the named dictionaries, which are used for the lifetime of the
+     * registry, rather than a word bank.
+     */
+    public boolean isNamed(Dictionary dictionary) {
+        return loadedDictionaries.contains(dictionary);
+    }
+
+    /**
+     * Returns a dictionary of the given words, which is the same instance for all word banks with the same words.
+     */
+    public Dictionary forWordBank(Collection<String> words) {
+        SortedSet<String> normalizedWords = new TreeSet<>();
+        for (String word : words)
+            normalizedWords.add(word.toUpperCase().replaceAll("[^A-Z]+", ""));
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (String word : normalizedWords)
+            hasher.putString(word, StandardCharsets.UTF_8).putByte((byte) 0);
+        return wordBankDictionaries.get(hasher.hash(), key -> new CustomDictionary(normalizedWords));
+    }
+
+    /**
+     * Loads the given dictionaries. Dictionaries that fail to load (e.g. because their data files are missing) are
+     * logged and skipped, and fail again on first use.
+     */
+    public void warmUp(Collection<String> names) {
+        for (String name : names)
+            try {
+                get(name);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to warm up dictionary {}", name, e);
+            }
+    }
+}
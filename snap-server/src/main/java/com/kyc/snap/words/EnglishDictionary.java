@@ -8,10 +8,15 @@ import java.util.Scanner;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+/**
+ * The dictionary of English words and word pairs. The frequency files are compiled into a {@link CompiledDictionary}
+ * the first time they're used (or whenever they change), and later loads just map the compiled file.
+ */
 public class EnglishDictionary implements Dictionary {
 
     public static final String WORD_FREQUENCIES_FILE = "./data/count_1w.txt";
     public static final String BIWORD_FREQUENCIES_FILE = "./data/count_2w.txt";
+    public static final String COMPILED_FILE = "./data/english-dictionary.bin";
     /**
      * The value to scale frequencies in the biword frequencies file. This value was estimated
      * heuristically such that all biword frequencies (which are greater than 100,000) automatically
@@ -19,12 +24,60 @@ public class EnglishDictionary implements Dictionary {
      */
     public static final int BIWORD_FREQUENCY_MULTIPLIER = 10000;
 
-    private final SortedMap<String, Long> wordFrequencies = new TreeMap<>();
-    private final Map<String, SortedMap<String, Long>> biwordFrequencies = new HashMap<>();
+    private final CompiledDictionary dictionary;
 
     public EnglishDictionary() {
-        try (Scanner scanner = new Scanner(new File(WORD_FREQUENCIES_FILE));
-                Scanner scanner2 = new Scanner(new File(BIWORD_FREQUENCIES_FILE))) {
+        File compiledFile = new File(COMPILED_FILE);
+        File wordFrequenciesFile = new File(WORD_FREQUENCIES_FILE);
+        File biwordFrequenciesFile = new File(BIWORD_FREQUENCIES_FILE);
+        long lastModified = Math.max(wordFrequenciesFile.lastModified(), biwordFrequenciesFile.lastModified());
+        if (compiledFile.lastModified() < lastModified)
+            compile(wordFrequenciesFile, biwordFrequenciesFile, compiledFile);
+        dictionary = CompiledDictionary.load(compiledFile);
+    }
+
+    public SortedMap<String, Long> getWordFrequencies() {
+        return dictionary.getWordFrequencies();
+    }
+
+    public Map<String, SortedMap<String, Long>> getBiWordFrequencies() {
+        return dictionary.getBiWordFrequencies();
+    }
+
+    /**
+     * @see CompiledDictionary#getWordAndNextWordFrequencies()
+     */
+    public SortedMap<String, Long> getWordAndNextWordFrequencies() {
+        return dictionary.getWordAndNextWordFrequencies();
+    }
+
+    @Override
+    public SortedMap<String, Long> getWordFrequencies(String prevWord, String prefix) {
+        return dictionary.getWordFrequencies(prevWord, prefix);
+    }
+
+    /**
+     * Returns the id of the given word in the word pairs, or -1 if it isn't in the dictionary or in any pair.
+     */
+    public int wordId(String word) {
+        return dictionary.wordId(word);
+    }
+
+    /**
+     * Adds the frequency of each next letter after the given prefix, among the words that come after the word with the
+     * given id, to the given array.
+     *
+     * @see CompiledDictionary#addNextLetterFrequencies(int, String, double[])
+     */
+    public void addNextLetterFrequencies(int prevWordId, String prefix, double[] frequencies) {
+        dictionary.addNextLetterFrequencies(prevWordId, prefix, frequencies);
+    }
+
+    private static void compile(File wordFrequenciesFile, File biwordFrequenciesFile, File compiledFile) {
+        SortedMap<String, Long> wordFrequencies = new TreeMap<>();
+        Map<String, SortedMap<String, Long>> biwordFrequencies = new HashMap<>();
+        try (Scanner scanner = new Scanner(wordFrequenciesFile);
+                Scanner scanner2 = new Scanner(biwordFrequenciesFile)) {
             while (scanner.hasNext())
                 wordFrequencies.put(scanner.next().toUpperCase(), scanner.nextLong());
             while (scanner2.hasNext()) {
@@ -34,13 +87,6 @@ public class EnglishDictionary implements Dictionary {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-    }
-
-    public SortedMap<String, Long> getWordFrequencies() {
-        return wordFrequencies;
-    }
-
-    public Map<String, SortedMap<String, Long>> getBiWordFrequencies() {
-        return biwordFrequencies;
+        CompiledDictionary.write(wordFrequencies, biwordFrequencies, compiledFile);
     }
 }
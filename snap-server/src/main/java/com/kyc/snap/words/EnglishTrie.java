@@ -1,65 +1,289 @@
 package com.kyc.snap.words;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import com.kyc.snap.solver.EnglishTokens;
-
+/**
+ * A trie of words. Each node is stored as a bitmask of the letters of its children, and the index of its first child,
+ * where the children of each node are numbered consecutively in alphabetical order. So each node only takes two ints,
+ * and finding a child is a single bit count. The words ending at all nodes are stored in one array, in node order.
+ *
+ * <p>The trie is stored in a binary format, so that it can be saved to a file and memory-mapped instead of rebuilt.
+ *
+ * <pre>
+ * header:             magic, version, numNodes, numEntries, numStrings, numStringBytes (ints)
+ * childMasks:         int[numNodes]
+ * firstChildren:      int[numNodes]
+ * wordStarts:         int[numNodes + 1], where the words at node i are entries [wordStarts[i], wordStarts[i + 1])
+ * entries:            int[numEntries], the string index of each word
+ * stringOffsets:      int[numStrings + 1], where string i is stringBytes[stringOffsets[i], stringOffsets[i + 1])
+ * stringBytes:        byte[numStringBytes], all strings in ISO-8859-1
+ * </pre>
+ */
 public class EnglishTrie {
 
     public static final int NO_NODE = 0;
 
-    private final Multimap<Integer, String> wordsByNodeIndex = ArrayListMultimap.create();
-    private int[][] nodes;
-    private int size = 1;
+    private static final int MAGIC = 0x534e5452;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int numNodes;
+    private final IntBuffer childMasks;
+    private final IntBuffer firstChildren;
+    private final IntBuffer wordStarts;
+    private final IntBuffer entries;
+    private final IntBuffer stringOffsets;
+    private final ByteBuffer stringBytes;
 
-    public static EnglishTrie of(Dictionary dictionary, int maxNumDeletions) {
-        EnglishTrie trie = new EnglishTrie();
-        for (String word : dictionary.getWords()) {
-            trie.add(word, word);
+    public static EnglishTrie of(Dictionary dictionary) {
+        Builder builder = new Builder();
+        for (String word : dictionary.getWords())
+            // Words with other characters can never be found in a grid
+            if (isUpperCase(word))
+                builder.add(word);
+        return builder.build();
+    }
 
-            if (maxNumDeletions >= 1)
-                for (int i = 0; i < word.length(); i++)
-                    trie.add(word.substring(0, i) + word.substring(i + 1), word);
+    public static EnglishTrie load(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new EnglishTrie(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return trie;
     }
 
-    private EnglishTrie() {
-        this.nodes = new int[1 << 20][EnglishTokens.NUM_LETTERS];
+    private EnglishTrie(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Not a compiled trie");
+        this.buffer = buffer;
+        numNodes = buffer.getInt(8);
+        int numEntries = buffer.getInt(12);
+        int numStrings = buffer.getInt(16);
+        int numStringBytes = buffer.getInt(20);
+        if (buffer.capacity() != HEADER_SIZE
+                + (3L * numNodes + 1 + numEntries + numStrings + 1) * Integer.BYTES
+                + numStringBytes)
+            throw new IllegalArgumentException("Truncated trie");
+
+        int position = HEADER_SIZE;
+        childMasks = buffer.slice(position, numNodes * Integer.BYTES).asIntBuffer();
+        position += numNodes * Integer.BYTES;
+        firstChildren = buffer.slice(position, numNodes * Integer.BYTES).asIntBuffer();
+        position += numNodes * Integer.BYTES;
+        wordStarts = buffer.slice(position, (numNodes + 1) * Integer.BYTES).asIntBuffer();
+        position += (numNodes + 1) * Integer.BYTES;
+        entries = buffer.slice(position, numEntries * Integer.BYTES).asIntBuffer();
+        position += numEntries * Integer.BYTES;
+        stringOffsets = buffer.slice(position, (numStrings + 1) * Integer.BYTES).asIntBuffer();
+        position += (numStrings + 1) * Integer.BYTES;
+        stringBytes = buffer.slice(position, numStringBytes);
+    }
+
+    /**
+     * Writes this trie to the given file. The file is replaced atomically, so concurrent readers never see a partially
+     * written file.
+     */
+    public void write(File file) {
+        try {
+            File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            try {
+                try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                    ByteBuffer contents = buffer.duplicate().clear();
+                    while (contents.hasRemaining())
+                        channel.write(contents);
+                }
+                Files.move(
+                        tempFile.toPath(),
+                        file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public int startNodeIndex() {
         return 1;
     }
 
+    /**
+     * Returns the number of nodes that space is allocated for.
+     */
+    public int capacity() {
+        return numNodes;
+    }
+
     public int getNodeIndex(int nodeIndex, char c) {
-        return nodeIndex < nodes.length ? nodes[nodeIndex][c - 'A'] : NO_NODE;
+        int bit = 1 << (c - 'A');
+        int mask = childMasks.get(nodeIndex);
+        if ((mask & bit) == 0)
+            return NO_NODE;
+        return firstChildren.get(nodeIndex) + Integer.bitCount(mask & (bit - 1));
+    }
+
+    /**
+     * Returns the index of the first child of the given node. The children of each node have consecutive indices.
+     */
+    public int getFirstChildIndex(int nodeIndex) {
+        return firstChildren.get(nodeIndex);
+    }
+
+    public int getNumChildren(int nodeIndex) {
+        return Integer.bitCount(childMasks.get(nodeIndex));
     }
 
     public Collection<String> getWords(int nodeIndex) {
-        return wordsByNodeIndex.get(nodeIndex);
+        int start = wordStarts.get(nodeIndex);
+        int end = wordStarts.get(nodeIndex + 1);
+        if (start == end)
+            return List.of();
+        List<String> words = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++)
+            words.add(string(entries.get(i)));
+        return words;
     }
 
-    private void add(String fuzzyWord, String word) {
-        int nodeIndex = startNodeIndex();
-        for (int i = 0; i < fuzzyWord.length(); i++) {
-            int index = fuzzyWord.charAt(i) - 'A';
-            ensureSize(nodeIndex);
-            if (nodes[nodeIndex][index] == 0)
-                nodes[nodeIndex][index] = ++size;
-            nodeIndex = nodes[nodeIndex][index];
-        }
-        wordsByNodeIndex.put(nodeIndex, word);
+    private String string(int id) {
+        int start = stringOffsets.get(id);
+        byte[] bytes = new byte[stringOffsets.get(id + 1) - start];
+        stringBytes.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
     }
 
-    private void ensureSize(int nodeIndex) {
-        if (nodeIndex >= nodes.length) {
-            int[][] prevNodes = nodes;
-            nodes = new int[nodes.length * 2][nodes[0].length];
-            for (int i = 0; i < prevNodes.length; i++)
-                System.arraycopy(prevNodes[i], 0, nodes[i], 0, nodes[0].length);
+    private static boolean isUpperCase(String word) {
+        for (int i = 0; i < word.length(); i++)
+            if (word.charAt(i) < 'A' || word.charAt(i) > 'Z')
+                return false;
+        return true;
+    }
+
+    /**
+     * Builds a trie where the children of each node are a linked list, and then renumbers the nodes in breadth-first
+     * order, so that the children of each node are consecutive.
+     */
+    private static class Builder {
+
+        private static final int INITIAL_CAPACITY = 1 << 10;
+
+        private final List<String> words = new ArrayList<>();
+        private int numNodes = 2;
+        private byte[] letters = new byte[INITIAL_CAPACITY];
+        private int[] firstChildren = new int[INITIAL_CAPACITY];
+        private int[] nextSiblings = new int[INITIAL_CAPACITY];
+        /**
+         * The last entry (plus 1) of the words ending at each node, or 0 if there are none.
+         */
+        private int[] lastEntries = new int[INITIAL_CAPACITY];
+        private int numEntries = 0;
+        private int[] entryWords = new int[INITIAL_CAPACITY];
+        private int[] prevEntries = new int[INITIAL_CAPACITY];
+
+        void add(String word) {
+            words.add(word);
+            int wordId = words.size() - 1;
+
+            int node = 1;
+            for (int i = 0; i < word.length(); i++)
+                node = getOrAddChild(node, (byte) (word.charAt(i) - 'A'));
+
+            if (numEntries == entryWords.length) {
+                entryWords = Arrays.copyOf(entryWords, 2 * numEntries);
+                prevEntries = Arrays.copyOf(prevEntries, 2 * numEntries);
+            }
+            entryWords[numEntries] = wordId;
+            prevEntries[numEntries] = lastEntries[node];
+            lastEntries[node] = ++numEntries;
+        }
+
+        EnglishTrie build() {
+            int numStringBytes = words.stream().mapToInt(String::length).sum();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                    + (3 * numNodes + 1 + numEntries + words.size() + 1) * Integer.BYTES
+                    + numStringBytes);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(numNodes).putInt(numEntries).putInt(words.size())
+                    .putInt(numStringBytes);
+            int position = HEADER_SIZE;
+            IntBuffer newChildMasks = buffer.slice(position, numNodes * Integer.BYTES).asIntBuffer();
+            position += numNodes * Integer.BYTES;
+            IntBuffer newFirstChildren = buffer.slice(position, numNodes * Integer.BYTES).asIntBuffer();
+            position += numNodes * Integer.BYTES;
+            IntBuffer wordStarts = buffer.slice(position, (numNodes + 1) * Integer.BYTES).asIntBuffer();
+            position += (numNodes + 1) * Integer.BYTES;
+            IntBuffer entries = buffer.slice(position, numEntries * Integer.BYTES).asIntBuffer();
+            position += numEntries * Integer.BYTES;
+
+            // The nodes in breadth-first order, which is their new numbering
+            int[] oldNodes = new int[numNodes];
+            oldNodes[1] = 1;
+            int numNewNodes = 2;
+            int numNewEntries = 0;
+            int[] children = new int[26];
+            for (int newNode = 1; newNode < numNodes; newNode++) {
+                int oldNode = oldNodes[newNode];
+
+                wordStarts.put(newNode, numNewEntries);
+                for (int entry = lastEntries[oldNode]; entry != 0; entry = prevEntries[entry - 1])
+                    numNewEntries++;
+                // Entries are linked from last to first, so fill them in backwards
+                int i = numNewEntries;
+                for (int entry = lastEntries[oldNode]; entry != 0; entry = prevEntries[entry - 1])
+                    entries.put(--i, entryWords[entry - 1]);
+
+                Arrays.fill(children, NO_NODE);
+                int mask = 0;
+                for (int child = firstChildren[oldNode]; child != NO_NODE; child = nextSiblings[child]) {
+                    children[letters[child]] = child;
+                    mask |= 1 << letters[child];
+                }
+                newChildMasks.put(newNode, mask);
+                newFirstChildren.put(newNode, numNewNodes);
+                for (int child : children)
+                    if (child != NO_NODE)
+                        oldNodes[numNewNodes++] = child;
+            }
+            wordStarts.put(numNodes, numNewEntries);
+
+            buffer.position(position);
+            int offset = 0;
+            buffer.putInt(offset);
+            for (String word : words)
+                buffer.putInt(offset += word.length());
+            for (String word : words)
+                buffer.put(word.getBytes(StandardCharsets.ISO_8859_1));
+            return new EnglishTrie(buffer);
+        }
+
+        private int getOrAddChild(int node, byte letter) {
+            for (int child = firstChildren[node]; child != NO_NODE; child = nextSiblings[child])
+                if (letters[child] == letter)
+                    return child;
+            if (numNodes == letters.length) {
+                letters = Arrays.copyOf(letters, 2 * numNodes);
+                firstChildren = Arrays.copyOf(firstChildren, 2 * numNodes);
+                nextSiblings = Arrays.copyOf(nextSiblings, 2 * numNodes);
+                lastEntries = Arrays.copyOf(lastEntries, 2 * numNodes);
+            }
+            int child = numNodes++;
+            letters[child] = letter;
+            nextSiblings[child] = firstChildren[node];
+            firstChildren[node] = child;
+            return child;
         }
     }
 }
@@ -0,0 +1,152 @@
+package com.kyc.snap.words;
+
+import java.util.Arrays;
+import java.util.SortedMap;
+
+/**
+ * A trie of words where each node stores the total frequency of all words that start with its prefix, so that the
+ * frequencies of each possible next letter after a prefix can be found by walking down the prefix, without iterating
+ * over all words with that prefix.
+ *
+ * <p>Nodes are numbered in the order of a depth-first traversal, and each node only stores its letter, its first child
+ * and its next sibling (in alphabetical order). Only words of uppercase letters are included.
+ */
+public class FrequencyTrie {
+
+    public static final int ROOT = 0;
+    public static final int NONE = -1;
+
+    private final int numNodes;
+    private final char[] letters;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int[] parents;
+    private final long[] wordFrequencies;
+    private final long[] totalFrequencies;
+
+    public FrequencyTrie(SortedMap<String, Long> sortedWordFrequencies) {
+        int capacity = 1024;
+        char[] letters = new char[capacity];
+        int[] firstChildren = new int[capacity];
+        int[] nextSiblings = new int[capacity];
+        int[] parents = new int[capacity];
+        long[] wordFrequencies = new long[capacity];
+        int numNodes = 1;
+        firstChildren[ROOT] = nextSiblings[ROOT] = parents[ROOT] = NONE;
+
+        // Since the words are sorted, a new node is always the last child of its parent, and the previous last child
+        // is on the path of the previous word
+        int[] path = new int[16];
+        String prevWord = "";
+        for (var entry : sortedWordFrequencies.entrySet()) {
+            String word = entry.getKey();
+            if (!isUpperCase(word))
+                continue;
+            int depth = 0;
+            while (depth < word.length() && depth < prevWord.length() && word.charAt(depth) == prevWord.charAt(depth))
+                depth++;
+            if (word.length() >= path.length)
+                path = Arrays.copyOf(path, 2 * word.length());
+            for (; depth < word.length(); depth++) {
+                if (numNodes == capacity) {
+                    capacity *= 2;
+                    letters = Arrays.copyOf(letters, capacity);
+                    firstChildren = Arrays.copyOf(firstChildren, capacity);
+                    nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+                    parents = Arrays.copyOf(parents, capacity);
+                    wordFrequencies = Arrays.copyOf(wordFrequencies, capacity);
+                }
+                int parent = path[depth];
+                int node = numNodes++;
+                letters[node] = word.charAt(depth);
+                firstChildren[node] = nextSiblings[node] = NONE;
+                parents[node] = parent;
+                if (firstChildren[parent] == NONE)
+                    firstChildren[parent] = node;
+                else
+                    nextSiblings[path[depth + 1]] = node;
+                path[depth + 1] = node;
+            }
+            wordFrequencies[path[word.length()]] += entry.getValue();
+            prevWord = word;
+        }
+
+        // Children are numbered after their parents, so each node's total is complete before it's added to its parent
+        long[] totalFrequencies = Arrays.copyOf(wordFrequencies, numNodes);
+        for (int node = numNodes - 1; node > ROOT; node--)
+            totalFrequencies[parents[node]] += totalFrequencies[node];
+
+        this.numNodes = numNodes;
+        this.letters = Arrays.copyOf(letters, numNodes);
+        this.firstChildren = Arrays.copyOf(firstChildren, numNodes);
+        this.nextSiblings = Arrays.copyOf(nextSiblings, numNodes);
+        this.parents = Arrays.copyOf(parents, numNodes);
+        this.wordFrequencies = Arrays.copyOf(wordFrequencies, numNodes);
+        this.totalFrequencies = totalFrequencies;
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * Returns the child of the given node for the given letter, or NONE if no word continues with that letter.
+     */
+    public int child(int node, char letter) {
+        for (int child = firstChildren[node]; child != NONE && letters[child] <= letter; child = nextSiblings[child])
+            if (letters[child] == letter)
+                return child;
+        return NONE;
+    }
+
+    /**
+     * Returns the node for the given prefix, or NONE if no word starts with it.
+     */
+    public int find(String prefix) {
+        int node = ROOT;
+        for (int i = 0; i < prefix.length() && node != NONE; i++)
+            node = child(node, prefix.charAt(i));
+        return node;
+    }
+
+    /**
+     * Returns the prefix of the given node, i.e. the inverse of {@link #find}.
+     */
+    public String prefix(int node) {
+        StringBuilder prefix = new StringBuilder();
+        for (; node != ROOT; node = parents[node])
+            prefix.append(letters[node]);
+        return prefix.reverse().toString();
+    }
+
+    /**
+     * Returns the frequency of the word that ends at the given node, or 0 if it's only a prefix.
+     */
+    public long wordFrequency(int node) {
+        return wordFrequencies[node];
+    }
+
+    /**
+     * Returns the total frequency of all words that start with the prefix of the given node.
+     */
+    public long totalFrequency(int node) {
+        return totalFrequencies[node];
+    }
+
+    /**
+     * Adds the frequency of each next letter after the prefix of the given node to the given array, where index 0 is
+     * the end of the word and index i is the i-th letter of the alphabet.
+     */
+    public void addNextLetterFrequencies(int node, double[] frequencies) {
+        frequencies[0] += wordFrequencies[node];
+        for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child])
+            frequencies[letters[child] - '@'] += totalFrequencies[child];
+    }
+
+    private static boolean isUpperCase(String word) {
+        for (int i = 0; i < word.length(); i++)
+            if (word.charAt(i) < 'A' || word.charAt(i) > 'Z')
+                return false;
+        return true;
+    }
+}
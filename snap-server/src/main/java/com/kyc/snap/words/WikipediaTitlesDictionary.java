@@ -1,33 +1,79 @@
 package com.kyc.snap.words;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.function.Supplier;
 
+import com.google.common.base.Suppliers;
+
+/**
+ * The titles of all Wikipedia articles, each with frequency 1. The titles file is compiled into a
+ * {@link CompiledDictionary} the first time it's used (or whenever it changes), and later loads just map the compiled
+ * file. Loading happens once, on first use, and is safe to trigger from multiple threads.
+ */
 public class WikipediaTitlesDictionary implements Dictionary {
 
     public static final String FILE = "./data/wikipedia-titles";
+    public static final String COMPILED_FILE = "./data/wikipedia-titles.bin";
 
-    private final SortedMap<String, Long> wordFrequencies = new TreeMap<>();
+    private final Supplier<CompiledDictionary> dictionary = Suppliers.memoize(WikipediaTitlesDictionary::load);
 
     @Override
     public SortedMap<String, Long> getWordFrequencies() {
-        if (wordFrequencies.isEmpty()) {
-            try (Scanner scanner = new Scanner(new File(FILE))) {
-                while (scanner.hasNext())
-                    wordFrequencies.put(scanner.next().toUpperCase().replaceAll("[^A-Z]+", " ").trim(), 1L);
-            } catch(FileNotFoundException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return wordFrequencies;
+        return dictionary.get().getWordFrequencies();
     }
 
     @Override
     public Map<String, SortedMap<String, Long>> getBiWordFrequencies() {
         return Map.of();
     }
+
+    private static CompiledDictionary load() {
+        File file = new File(FILE);
+        File compiledFile = new File(COMPILED_FILE);
+        if (compiledFile.lastModified() < file.lastModified())
+            compile(file, compiledFile);
+        return CompiledDictionary.load(compiledFile);
+    }
+
+    private static void compile(File file, File compiledFile) {
+        SortedMap<String, Long> wordFrequencies = new TreeMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                for (String title : line.split("\\s+")) {
+                    String word = normalize(title);
+                    if (!word.isEmpty())
+                        wordFrequencies.put(word, 1L);
+                }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        CompiledDictionary.write(wordFrequencies, Map.of(), compiledFile);
+    }
+
+    /**
+     * Returns the title in upper case, with each run of other characters replaced by a single space.
+     */
+    private static String normalize(String title) {
+        String upperCaseTitle = title.toUpperCase();
+        StringBuilder word = new StringBuilder(upperCaseTitle.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < upperCaseTitle.length(); i++) {
+            char c = upperCaseTitle.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (pendingSpace && !word.isEmpty())
+                    word.append(' ');
+                word.append(c);
+                pendingSpace = false;
+            } else
+                pendingSpace = true;
+        }
+        return word.toString();
+    }
 }
@@ -1,15 +1,22 @@
 package com.kyc.snap.words;
 
 import java.awt.Point;
-import java.util.ArrayDeque;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Deque;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
@@ -18,78 +25,82 @@ import com.kyc.snap.solver.EnglishTokens;
 
 public class WordSearchSolver {
 
-    private final Cache<List<Integer>, EnglishTrie> CACHED_ENGLISH_DICTIONARY_TRIES = Caffeine.newBuilder()
-            .maximumSize(3)
+    private static final Logger LOGGER = LoggerFactory.getLogger(WordSearchSolver.class);
+    /**
+     * The maximum total capacity (in nodes) of cached tries of unpinned dictionaries. The trie of an unpinned
+     * dictionary that is larger than this isn't cached at all, and is rebuilt on every search.
+     */
+    private static final long MAX_CACHED_TRIE_NODES = 1 << 24;
+    private static final int MAX_NUM_STEPS = 10000000;
+
+    /**
+     * The saved trie of the English dictionary, which is memory-mapped instead of rebuilt, and is rebuilt whenever the
+     * compiled dictionary changes or the saved trie can't be read.
+     */
+    public static final String ENGLISH_TRIE_FILE = "./data/english-trie.bin";
+
+    /**
+     * Tries of pinned dictionaries, which are never evicted, since they may be larger than the cache of other tries.
+     */
+    private final Map<Dictionary, EnglishTrie> pinnedTries = new ConcurrentHashMap<>();
+    /**
+     * Tries of recently used unpinned dictionaries. Dictionaries are compared by identity, so this is only useful for
+     * shared dictionary instances (see {@link DictionaryRegistry}).
+     */
+    private final Cache<Dictionary, EnglishTrie> cachedTries = Caffeine.newBuilder()
+            .maximumWeight(MAX_CACHED_TRIE_NODES)
+            .<Dictionary, EnglishTrie>weigher((dictionary, trie) -> trie.capacity())
             .build();
+    private final Predicate<Dictionary> isPinned;
+    private final int maxNumSteps;
+
+    public WordSearchSolver() {
+        this(dictionary -> false);
+    }
+
+    /**
+     * @param isPinned whether the trie of a dictionary should be kept for the lifetime of the solver, e.g. for the
+     *                 named dictionaries of a {@link DictionaryRegistry}
+     */
+    public WordSearchSolver(Predicate<Dictionary> isPinned) {
+        this(isPinned, MAX_NUM_STEPS);
+    }
+
+    WordSearchSolver(Predicate<Dictionary> isPinned, int maxNumSteps) {
+        this.isPinned = isPinned;
+        this.maxNumSteps = maxNumSteps;
+    }
 
     /**
      * @param minLengths if minLengths[d] exists, then return words within Levenshtein distance d if they have length
      *                   at least minLengths[d]. For example, minLengths = {3, 5} returns all exact matches that are
      *                   at least 3 letters long, and all inexact matches (with Levenshtein distance 1) that are at
      *                   least 5 letters long.
+     * @param parallel   whether to search from different cells on multiple threads (of the common fork-join pool). The
+     *                   results are the same either way, unless the search hits its step limit.
      */
     public AllResults find(
             List<String> grid,
             Dictionary dictionary,
             boolean boggle,
-            List<Integer> minLengths) {
-        return find(
-                grid.stream()
-                        .map(String::toCharArray)
-                        .toArray(char[][]::new),
-                (currentPath, consumer) -> {
-                    if (currentPath.isEmpty()) {
-                        for (int y = 0; y < grid.size(); y++)
-                            for (int x = 0; x < grid.get(y).length(); x++)
-                                consumer.accept(new Point(x, y));
-                    } else if (boggle || currentPath.size() == 1) {
-                        for (int dx = -1; dx <= 1; dx++)
-                            for (int dy = -1; dy <= 1; dy++)
-                                consumer.accept(new Point(
-                                        currentPath.getLast().x + dx,
-                                        currentPath.getLast().y + dy));
-                    } else {
-                        Iterator<Point> it = currentPath.iterator();
-                        Point p0 = it.next();
-                        Point p1 = it.next();
-                        consumer.accept(new Point(
-                                currentPath.getLast().x + (p1.x - p0.x),
-                                currentPath.getLast().y + (p1.y - p0.y)));
-                    }
-                },
-                dictionary,
-                minLengths);
-    }
-
-    private AllResults find(
-            char[][] grid,
-            NeighborFunction neighborFunction,
-            Dictionary dictionary,
-            List<Integer> minLengths) {
-        for (char[] row : grid)
-            for (int i = 0; i < row.length; i++)
-                row[i] = Character.toUpperCase(row[i]);
-
-        int maxNumDeletions = minLengths.size() - 1;
+            List<Integer> minLengths,
+            boolean parallel) {
+        int width = grid.stream().mapToInt(String::length).max().orElse(0);
+        char[] cells = new char[grid.size() * width];
+        for (int y = 0; y < grid.size(); y++)
+            for (int x = 0; x < grid.get(y).length(); x++)
+                cells[y * width + x] = Character.toUpperCase(grid.get(y).charAt(x));
 
-        EnglishTrie trie = dictionary instanceof EnglishDictionary
-                ? CACHED_ENGLISH_DICTIONARY_TRIES.get(
-                        minLengths, _key -> EnglishTrie.of(dictionary, maxNumDeletions))
-                : EnglishTrie.of(dictionary, maxNumDeletions);
+        EnglishTrie trie = getTrie(dictionary);
 
         List<Result> results = new ArrayList<>();
-        int[] limit = {10000000};
-        new SolverInstance(
-                grid,
-                neighborFunction,
-                minLengths,
-                trie,
-                new ArrayDeque<>(),
-                new HashSet<>(),
-                new StringBuilder(),
-                new ArrayDeque<>(List.of(List.of(new TriePosition(trie.startNodeIndex(), 0)))),
-                results,
-                limit).recursiveSearch();
+        StepBudget budget = new StepBudget(maxNumSteps);
+        SolverInstance instance =
+                new SolverInstance(cells, width, boggle, minLengths, parallel, trie, results, budget);
+        if (parallel)
+            ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(instance::recursiveSearch));
+        else
+            instance.recursiveSearch();
         results.sort(Comparator.comparing(result -> -dictionary.getWordFrequencies().get(result.word)
                 * Math.pow(EnglishTokens.NUM_LETTERS, result.word.length() - 2 * result.levenshteinDistance)));
 
@@ -101,77 +112,366 @@ public class WordSearchSolver {
                 if (filteredResults.size() == 200)
                     break;
             }
-        return new AllResults(filteredResults, limit[0] == 0);
+        return new AllResults(filteredResults, budget.hitLimit());
+    }
+
+    /**
+     * Loads the trie of the given dictionary, so that the first search doesn't have to.
+     */
+    public void warmUp(Dictionary dictionary) {
+        getTrie(dictionary);
+    }
+
+    private EnglishTrie getTrie(Dictionary dictionary) {
+        if (isPinned.test(dictionary))
+            return pinnedTries.computeIfAbsent(dictionary, WordSearchSolver::loadTrie);
+        return cachedTries.get(dictionary, WordSearchSolver::loadTrie);
+    }
+
+    private static EnglishTrie loadTrie(Dictionary dictionary) {
+        if (!(dictionary instanceof EnglishDictionary))
+            return EnglishTrie.of(dictionary);
+
+        File file = new File(ENGLISH_TRIE_FILE);
+        if (file.lastModified() >= new File(EnglishDictionary.COMPILED_FILE).lastModified()) {
+            try {
+                return EnglishTrie.load(file);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to load trie from {}, rebuilding it", file, e);
+            }
+        }
+        EnglishTrie.of(dictionary).write(file);
+        return EnglishTrie.load(file);
     }
 
     public record AllResults(List<Result> results, boolean hitLimit) {}
 
     public record Result(List<Point> path, String word, int levenshteinDistance) {}
 
-    interface NeighborFunction {
-        void forEachNeighbor(Deque<Point> currentPath, Consumer<Point> consumer);
-    }
+    /**
+     * The state of a search from a given path. Cells are identified by their index y * width + x, and the search only
+     * uses arrays that are allocated once: the path, the set of visited cells (as a bitset), and a stack of the trie
+     * positions after each prefix of the path.
+     *
+     * <p>The trie positions after a path are the trie nodes within Levenshtein distance maxDistance of the path's
+     * string, each with its distance, i.e. the states of a Levenshtein automaton for the path's string, run on the
+     * trie. They're computed from the positions of the previous prefix one letter at a time, like one column of the
+     * usual dynamic programming table, so the distance of each word is known as soon as its node is reached.
+     *
+     * <p>A parallel search is split into a separate task for each path of length parallelDepth, which run in parallel.
+     * Each task has its own instance, so that tasks share nothing except the step budget, and the results of each task
+     * are appended in the order that a sequential search would find them.
+     */
+    private static class SolverInstance {
 
-    private record SolverInstance(
-            char[][] grid,
-            NeighborFunction neighborFunction,
-            List<Integer> minLengths,
-            EnglishTrie trie,
-            Deque<Point> path,
-            Set<Point> points,
-            StringBuilder string,
-            Deque<List<TriePosition>> allTriePositions,
-            List<Result> results,
-            int[] limit) {
+        /**
+         * Each trie position is stored as its node index shifted left by this much, plus its distance, so that sorting
+         * positions sorts them by node and then by distance.
+         */
+        private static final int DISTANCE_BITS = 8;
+        private static final long DISTANCE_MASK = (1 << DISTANCE_BITS) - 1;
+
+        private final char[] cells;
+        private final int width;
+        private final int height;
+        private final boolean boggle;
+        private final int parallelDepth;
+        private final int[] minLengths;
+        private final int maxDistance;
+        private final EnglishTrie trie;
+        private final List<Result> results;
+        private final StepBudget budget;
+        private final int[] path;
+        private final long[] visited;
+        /**
+         * The trie positions after the first d cells of the path are [positionStarts[d], positionStarts[d + 1]) in the
+         * position stack.
+         */
+        private final int[] positionStarts;
+        private long[] positions;
+        private int depth = 0;
+
+        SolverInstance(
+                char[] cells,
+                int width,
+                boolean boggle,
+                List<Integer> minLengths,
+                boolean parallel,
+                EnglishTrie trie,
+                List<Result> results,
+                StepBudget budget) {
+            if (minLengths.isEmpty() || minLengths.size() > DISTANCE_MASK)
+                throw new IllegalArgumentException("Must have between 1 and " + DISTANCE_MASK + " min lengths");
+            this.cells = cells;
+            this.width = width;
+            this.height = width == 0 ? 0 : cells.length / width;
+            this.boggle = boggle;
+            this.parallelDepth = !parallel ? 0 : boggle ? 2 : 1;
+            this.minLengths = minLengths.stream().mapToInt(Integer::intValue).toArray();
+            this.maxDistance = minLengths.size() - 1;
+            this.trie = trie;
+            this.results = results;
+            this.budget = budget;
+            this.path = new int[cells.length];
+            this.visited = new long[(cells.length + 63) / 64];
+            this.positionStarts = new int[cells.length + 2];
+            this.positions = new long[64];
+
+            // Before any letters, each node's distance is its depth, i.e. deleting all its letters
+            positions[0] = position(trie.startNodeIndex(), 0);
+            positionStarts[1] = addDeletions(0, 1);
+        }
+
+        private SolverInstance(SolverInstance instance) {
+            this.cells = instance.cells;
+            this.width = instance.width;
+            this.height = instance.height;
+            this.boggle = instance.boggle;
+            this.parallelDepth = instance.parallelDepth;
+            this.minLengths = instance.minLengths;
+            this.maxDistance = instance.maxDistance;
+            this.trie = instance.trie;
+            this.results = new ArrayList<>();
+            this.budget = instance.budget.forTask();
+            this.path = instance.path.clone();
+            this.visited = instance.visited.clone();
+            this.positionStarts = instance.positionStarts.clone();
+            this.positions = instance.positions.clone();
+            this.depth = instance.depth;
+        }
 
         void recursiveSearch() {
-            if (limit[0] == 0)
+            if (!budget.takeStep())
                 return;
-            limit[0]--;
 
-            for (TriePosition position : allTriePositions.getLast())
-                for (String word : trie.getWords(position.nodeIndex)) {
-                    int d = StringUtil.levenshteinDistance(word, string);
-                    if (d < minLengths.size() && word.length() >= minLengths.get(d))
-                        results.add(new Result(List.copyOf(path), word, d));
+            for (int i = positionStarts[depth]; i < positionStarts[depth + 1]; i++) {
+                int distance = (int) (positions[i] & DISTANCE_MASK);
+                for (String word : trie.getWords((int) (positions[i] >> DISTANCE_BITS)))
+                    if (word.length() >= minLengths[distance])
+                        results.add(new Result(pathPoints(), word, distance));
+            }
+
+            int numNeighbors = numNeighbors();
+            if (depth < parallelDepth) {
+                List<SolverInstance> subtasks = new ArrayList<>();
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (int i = 0; i < numNeighbors; i++) {
+                    int cell = neighbor(i);
+                    if (!isFree(cell))
+                        continue;
+                    SolverInstance subtask = new SolverInstance(this);
+                    subtasks.add(subtask);
+                    tasks.add(ForkJoinTask.adapt(() -> {
+                        subtask.visit(cell);
+                        subtask.budget.release();
+                    }));
                 }
+                budget.release();
+                ForkJoinTask.invokeAll(tasks);
+                for (SolverInstance subtask : subtasks)
+                    results.addAll(subtask.results);
+            } else
+                for (int i = 0; i < numNeighbors; i++) {
+                    int cell = neighbor(i);
+                    if (isFree(cell))
+                        visit(cell);
+                }
+        }
 
-            neighborFunction.forEachNeighbor(path, neighbor -> {
-                if (neighbor.y >= 0
-                        && neighbor.y < grid.length
-                        && neighbor.x >= 0
-                        && neighbor.x < grid[neighbor.y].length
-                        && !points.contains(neighbor)) {
-                    char c = grid[neighbor.y][neighbor.x];
-                    if (c < 'A' || c > 'Z')
-                        return;
-
-                    List<TriePosition> newPositions = new ArrayList<>();
-                    for (TriePosition position : allTriePositions.getLast()) {
-                        int nodeIndex = trie.getNodeIndex(position.nodeIndex, c);
-                        if (nodeIndex != EnglishTrie.NO_NODE)
-                            newPositions.add(new TriePosition(nodeIndex, position.numDeletions));
-                        if (position.numDeletions + 1 < minLengths.size())
-                            newPositions.add(new TriePosition(position.nodeIndex, position.numDeletions + 1));
-                    }
-                    if (newPositions.isEmpty())
-                        return;
-
-                    path.add(neighbor);
-                    points.add(neighbor);
-                    string.append(c);
-                    allTriePositions.add(newPositions);
-
-                    recursiveSearch();
-
-                    Point p = path.removeLast();
-                    points.remove(p);
-                    string.setLength(string.length() - 1);
-                    allTriePositions.removeLast();
+        /**
+         * Returns the number of candidates for the next cell of the path.
+         */
+        private int numNeighbors() {
+            if (depth == 0)
+                return cells.length;
+            else if (boggle || depth == 1)
+                return 9;
+            else
+                return 1;
+        }
+
+        /**
+         * Returns the i-th candidate for the next cell of the path, or -1 if it's outside the grid.
+         */
+        private int neighbor(int i) {
+            if (depth == 0)
+                return i;
+            int x = path[depth - 1] % width;
+            int y = path[depth - 1] / width;
+            if (boggle || depth == 1) {
+                x += i / 3 - 1;
+                y += i % 3 - 1;
+            } else {
+                x += path[1] % width - path[0] % width;
+                y += path[1] / width - path[0] / width;
+            }
+            return x >= 0 && x < width && y >= 0 && y < height ? y * width + x : -1;
+        }
+
+        private boolean isFree(int cell) {
+            return cell != -1
+                    && (visited[cell >> 6] & 1L << cell) == 0
+                    && cells[cell] >= 'A'
+                    && cells[cell] <= 'Z';
+        }
+
+        private void visit(int cell) {
+            char c = cells[cell];
+            int end = positionStarts[depth + 1];
+            int newEnd = end;
+            for (int i = positionStarts[depth]; i < end; i++) {
+                int nodeIndex = (int) (positions[i] >> DISTANCE_BITS);
+                int distance = (int) (positions[i] & DISTANCE_MASK);
+                int child = trie.getNodeIndex(nodeIndex, c);
+                if (child != EnglishTrie.NO_NODE)
+                    newEnd = push(newEnd, position(child, distance));
+                if (distance < maxDistance) {
+                    // The letter is inserted
+                    newEnd = push(newEnd, position(nodeIndex, distance + 1));
+                    // The letter is substituted for the next letter of a word
+                    int firstChild = trie.getFirstChildIndex(nodeIndex);
+                    for (int j = 0; j < trie.getNumChildren(nodeIndex); j++)
+                        if (firstChild + j != child)
+                            newEnd = push(newEnd, position(firstChild + j, distance + 1));
                 }
-            });
+            }
+            newEnd = addDeletions(end, newEnd);
+            if (newEnd == end)
+                return;
+
+            positionStarts[depth + 2] = newEnd;
+            path[depth++] = cell;
+            visited[cell >> 6] |= 1L << cell;
+
+            recursiveSearch();
+
+            depth--;
+            visited[cell >> 6] &= ~(1L << cell);
+        }
+
+        /**
+         * Adds the positions reached by deleting letters of words after the positions in [start, end), and then
+         * removes all but the closest position of each node. Returns the new end.
+         */
+        private int addDeletions(int start, int end) {
+            for (int i = start; i < end; i++) {
+                int nodeIndex = (int) (positions[i] >> DISTANCE_BITS);
+                int distance = (int) (positions[i] & DISTANCE_MASK);
+                if (distance < maxDistance) {
+                    int firstChild = trie.getFirstChildIndex(nodeIndex);
+                    for (int j = 0; j < trie.getNumChildren(nodeIndex); j++)
+                        end = push(end, position(firstChild + j, distance + 1));
+                }
+            }
+
+            Arrays.sort(positions, start, end);
+            int newEnd = start;
+            for (int i = start; i < end; i++)
+                if (newEnd == start || positions[i] >> DISTANCE_BITS != positions[newEnd - 1] >> DISTANCE_BITS)
+                    positions[newEnd++] = positions[i];
+            return newEnd;
+        }
+
+        /**
+         * Pushes the given position onto the position stack at the given index, and returns the next index.
+         */
+        private int push(int index, long position) {
+            if (index == positions.length)
+                positions = Arrays.copyOf(positions, 2 * index);
+            positions[index] = position;
+            return index + 1;
+        }
+
+        private List<Point> pathPoints() {
+            Point[] points = new Point[depth];
+            for (int i = 0; i < depth; i++)
+                points[i] = new Point(path[i] % width, path[i] / width);
+            return List.of(points);
+        }
+
+        private static long position(int nodeIndex, int distance) {
+            return (long) nodeIndex << DISTANCE_BITS | distance;
         }
     }
 
-    private record TriePosition(int nodeIndex, int numDeletions) {}
+    /**
+     * The number of steps that all tasks of a search can take in total. Each task takes steps from the shared budget in
+     * batches, so that tasks rarely contend on it. When the shared budget runs out, a task takes half of the unused
+     * steps of another task's batch instead, so that a search only hits the limit once all steps are used.
+     */
+    static class StepBudget {
+
+        private static final int BATCH_SIZE = 1024;
+
+        private final SharedSteps sharedSteps;
+        /**
+         * The unused steps of this task's batch. Only this task decreases it, except when another task takes half of
+         * it while holding the lock of the shared steps.
+         */
+        private final AtomicInteger numTakenSteps = new AtomicInteger();
+
+        StepBudget(int maxNumSteps) {
+            this(new SharedSteps(maxNumSteps));
+        }
+
+        private StepBudget(SharedSteps sharedSteps) {
+            this.sharedSteps = sharedSteps;
+            synchronized (sharedSteps) {
+                sharedSteps.budgets.add(this);
+            }
+        }
+
+        StepBudget forTask() {
+            return new StepBudget(sharedSteps);
+        }
+
+        boolean hitLimit() {
+            return sharedSteps.hitLimit;
+        }
+
+        boolean takeStep() {
+            if (numTakenSteps.decrementAndGet() >= 0)
+                return true;
+            if (sharedSteps.hitLimit)
+                return false;
+            // Batches only grow while holding the lock, so if no batch has unused steps, then all steps are used
+            synchronized (sharedSteps) {
+                int numSteps = Math.min(sharedSteps.remaining, BATCH_SIZE);
+                sharedSteps.remaining -= numSteps;
+                for (StepBudget budget : sharedSteps.budgets) {
+                    if (numSteps > 0)
+                        break;
+                    int numUnusedSteps = budget.numTakenSteps.getAndUpdate(n -> n > 0 ? n / 2 : n);
+                    numSteps = Math.max(numUnusedSteps - numUnusedSteps / 2, 0);
+                }
+                if (numSteps == 0) {
+                    sharedSteps.hitLimit = true;
+                    return false;
+                }
+                numTakenSteps.set(numSteps - 1);
+                return true;
+            }
+        }
+
+        /**
+         * Returns the unused steps of this task to the shared budget, once the task is done.
+         */
+        void release() {
+            synchronized (sharedSteps) {
+                sharedSteps.remaining += Math.max(numTakenSteps.getAndSet(0), 0);
+                sharedSteps.budgets.remove(this);
+            }
+        }
+    }
+
+    private static class SharedSteps {
+
+        private int remaining;
+        private final Set<StepBudget> budgets = new HashSet<>();
+        private volatile boolean hitLimit = false;
+
+        SharedSteps(int maxNumSteps) {
+            this.remaining = maxNumSteps;
+        }
+    }
 }
@@ -0,0 +1,156 @@
+package com.kyc.snap.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kyc.snap.api.WordsService.PregexBatchRequest;
+import com.kyc.snap.api.WordsService.PregexBatchResult;
+import com.kyc.snap.api.WordsService.PregexEvent;
+import com.kyc.snap.api.WordsService.PregexRequest;
+import com.kyc.snap.solver.EnglishModel;
+import com.kyc.snap.solver.GenericSolver.PriorModel;
+import com.kyc.snap.solver.PregexSolver;
+import com.kyc.snap.words.DictionaryRegistry;
+import com.kyc.snap.words.EnglishDictionary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class WordsResourceTest {
+
+    static final EnglishDictionary dictionary = new EnglishDictionary();
+    static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterClass
+    public static void shutDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void pregexStream() throws Exception {
+        WordsResource resource = resource(Duration.ofSeconds(10));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        resource.pregexStream(query("ANSWER")).write(output);
+
+        List<PregexEvent> events = readEvents(output);
+        assertThat(events).extracting(PregexEvent::type).contains("result").endsWith("done");
+        assertThat(events.get(events.size() - 1).results().get(0).message()).isEqualTo("ANSWER");
+    }
+
+    @Test
+    public void pregexStreamInvalidRequest() throws Exception {
+        WordsResource resource = resource(Duration.ofSeconds(10));
+        PregexRequest unknownModel =
+                new PregexRequest(List.of("ANSWER"), false, null, null, null, false, null, false, null, "unknown");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        resource.pregexStream(unknownModel).write(output);
+
+        assertThat(readEvents(output))
+                .containsExactly(new PregexEvent("error", null, null, null, null, "Unknown model"));
+    }
+
+    @Test
+    public void pregexBatchTooManyQueries() {
+        WordsResource resource = resource(Duration.ofSeconds(10));
+        PregexBatchRequest request = new PregexBatchRequest(Collections.nCopies(101, query("ANSWER")));
+        assertThatThrownBy(() -> resource.pregexBatch(request)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void pregexBatchErrorsAreIsolated() {
+        WordsResource resource = resource(Duration.ofSeconds(10));
+        PregexRequest unknownModel =
+                new PregexRequest(List.of("ANSWER"), false, null, null, null, false, null, false, null, "unknown");
+        List<PregexBatchResult> responses =
+                resource.pregexBatch(new PregexBatchRequest(List.of(query("ANSWER"), unknownModel, query("QUERY"))))
+                        .responses();
+
+        assertThat(responses.get(0).results().get(0).message()).isEqualTo("ANSWER");
+        assertThat(responses.get(1).error()).isEqualTo("Unknown model");
+        assertThat(responses.get(2).results().get(0).message()).isEqualTo("QUERY");
+    }
+
+    @Test
+    public void pregexBatchInternalErrorsAreHidden() {
+        WordsResource resource = resource(Duration.ofSeconds(10));
+        PregexRequest brokenModel =
+                new PregexRequest(List.of("ANSWER"), false, null, null, null, false, null, false, null, "broken");
+        List<PregexBatchResult> responses =
+                resource.pregexBatch(new PregexBatchRequest(List.of(brokenModel, query("ANSWER")))).responses();
+
+        assertThat(responses.get(0).error()).isEqualTo("Internal error");
+        assertThat(responses.get(1).results().get(0).message()).isEqualTo("ANSWER");
+    }
+
+    @Test
+    public void pregexBatchTimeout() throws Exception {
+        WordsResource resource = resource(Duration.ofMillis(200));
+        List<PregexBatchResult> responses =
+                resource.pregexBatch(new PregexBatchRequest(List.of(query("<AADDDEGILNNOORRRRUU>"), query("ANSWER"))))
+                        .responses();
+
+        assertThat(responses.get(0).hitLimit()).isTrue();
+        // the timed out queries don't keep using the worker
+        assertThat(executor.submit(() -> true).get(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private static WordsResource resource(Duration maxPregexBatchTime) {
+        return new WordsResource(
+                null,
+                null,
+                Map.of(
+                        WordsResource.DEFAULT_PREGEX_MODEL, new PregexSolver(new EnglishModel(dictionary)),
+                        "broken", new PregexSolver(new BrokenModel())),
+                executor,
+                new DictionaryRegistry(Map.of(DictionaryRegistry.ENGLISH, () -> dictionary)),
+                new ObjectMapper(),
+                maxPregexBatchTime);
+    }
+
+    private static class BrokenModel implements PriorModel {
+
+        @Override
+        public long startContext() {
+            throw new IllegalStateException("Model data at /var/snap/model.bin is corrupted");
+        }
+
+        @Override
+        public long advance(long context, int token) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public double[] getProbabilities(long context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toMessage(List<Integer> tokens) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static List<PregexEvent> readEvents(ByteArrayOutputStream output) throws IOException {
+        List<PregexEvent> events = new ArrayList<>();
+        for (String line : output.toString(StandardCharsets.UTF_8).split("\n"))
+            events.add(new ObjectMapper().readValue(line, PregexEvent.class));
+        return events;
+    }
+
+    private static PregexRequest query(String pregex) {
+        return new PregexRequest(List.of(pregex), false, null, null, null, false, null, false, null, null);
+    }
+}
@@ -45,7 +45,7 @@ public class GenericSolverTest {
         record State(Set<Point> points, Point curr) {}
 
         GenericSolverImpl<State> solver = new GenericSolverImpl<>();
-        var points = ImmutableMap.<Point, double[]>builder()
+        var points = ImmutableMap.<Point, Emission>builder()
                 .put(new Point(0, 0), EnglishTokens.is('J'))
                 .put(new Point(0, 1), EnglishTokens.is('A'))
                 .put(new Point(1, 0), EnglishTokens.wildcard())
@@ -56,13 +56,13 @@ public class GenericSolverTest {
                 (state, transitions) -> {
                     if (state.points.size() == points.size())
                         transitions.add(null, EnglishTokens.wordDelimiter());
-                    points.forEach((p, probabilities) -> {
+                    points.forEach((p, emission) -> {
                         if (state.points.contains(p))
                             return;
                         if (state.curr == null || Math.abs(state.curr.x - p.x) + Math.abs(state.curr.y - p.y) == 1) {
                             Set<Point> newPoints = new HashSet<>(state.points);
                             newPoints.add(p);
-                            transitions.add(new State(newPoints, p), probabilities);
+                            transitions.add(new State(newPoints, p), emission);
                         }
                     });
                 },
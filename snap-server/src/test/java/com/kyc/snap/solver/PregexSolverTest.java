@@ -1,10 +1,18 @@
 package com.kyc.snap.solver;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.kyc.snap.solver.GenericSolver.AllResults;
+import com.kyc.snap.solver.GenericSolver.Budget;
 import com.kyc.snap.solver.GenericSolver.Result;
+import com.kyc.snap.solver.GenericSolver.SearchParameters;
+import com.kyc.snap.words.CustomDictionary;
 import com.kyc.snap.words.EnglishDictionary;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -129,4 +137,145 @@ public class PregexSolverTest {
                 .contains("BAT", "CAT")
                 .doesNotHaveDuplicates();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parallel() {
+        String pregex = "<(MEN)?(NGE)?(NMA)?(REA)?(RKS)?(RRA)?(THQ)?(TIO)?(TWI)?(UES)?>";
+        assertThat(solver.solve(pregex, null, new SearchParameters(4000, 100, true, 0, false)))
+                .isEqualTo(solver.solve(pregex, null, new SearchParameters(4000, 100, false, 0, false)));
+    }
+
+    @Test
+    public void mergeEquivalentStates() {
+        Result result = solver.solve(
+                "<AADDDEGILNNOORRRRUU>", null, new SearchParameters(4000, 100, false, 1, false)).get(0);
+        assertThat(result.message().split(" ")).containsExactlyInAnyOrder("UNDERGROUND", "RAILROAD");
+    }
+
+    @Test
+    public void bestFirst() {
+        SearchParameters parameters = new SearchParameters(4000, 10, false, 0, true);
+        for (String pregex : List.of("[AB][MN][RS][VW][DE][op]", "<ANSWRE>", "(A[NOP].)&(.[MNO]D)")) {
+            List<Result> beamResults = solver.solve(pregex, null, new SearchParameters(4000, 10, false, 0, false));
+            List<Result> bestFirstResults = solver.solve(pregex, null, parameters);
+            assertThat(bestFirstResults.get(0)).isEqualTo(beamResults.get(0));
+            for (int i = 0; i < Math.min(beamResults.size(), bestFirstResults.size()); i++)
+                assertThat(bestFirstResults.get(i).score()).isGreaterThanOrEqualTo(beamResults.get(i).score());
+        }
+    }
+
+    @Test
+    public void bestFirstUnbounded() {
+        AllResults results = solver.solve(
+                "(CODE|VALUE)+",
+                null,
+                new SearchParameters(4000, 10, false, 0, true),
+                new Budget(Duration.ofSeconds(10), Long.MAX_VALUE, Integer.MAX_VALUE),
+                (result, rank) -> {});
+        assertThat(results.results()).isNotEmpty();
+        assertThat(results.results().get(0))
+                .isEqualTo(solver.solve("(CODE|VALUE)+", null, new SearchParameters(4000, 10, false, 0, false)).get(0));
+    }
+
+    @Test
+    public void characterModel() {
+        PregexSolver characterSolver = new PregexSolver(new CharacterModel(new EnglishDictionary(), 5));
+        List<Result> results = characterSolver.solve("ICANFINDTHESPACESINTHISSLUG", null);
+        assertThat(results.subList(0, Math.min(10, results.size())))
+                .extracting(Result::message)
+                .contains("I CAN FIND THE SPACES IN THIS SLUG");
+        // words that aren't in the dictionary still get results
+        assertThat(characterSolver.solve("QWXZ", null)).isNotEmpty();
+    }
+
+    @Test
+    public void characterModelRoundTrip() throws Exception {
+        CharacterModel model = new CharacterModel(new CustomDictionary(List.of("CAT", "CAR", "DOG")), 3);
+        File file = File.createTempFile("characters", ".bin");
+        file.deleteOnExit();
+        model.write(file);
+
+        CharacterModel loaded = CharacterModel.load(file);
+        long context = loaded.advance(loaded.startContext(), 'C' - '@');
+        assertThat(loaded.getProbabilities(context)).containsExactly(model.getProbabilities(context));
+        // recently used probabilities are reused
+        assertThat(loaded.getProbabilities(context)).isSameAs(loaded.getProbabilities(context));
+    }
+
+    @Test
+    public void englishModelCache() {
+        EnglishModel model = new EnglishModel(new EnglishDictionary(), 1000);
+        new PregexSolver(model).solve("ICANFINDTHESPACESINTHISSLUG", null);
+        assertThat(model.cacheStats().hitCount()).isPositive();
+        assertThat(model.cacheStats().missCount()).isPositive();
+        assertThat(model.getContext(List.of(20, 8, 5, 0, 3)))
+                .isEqualTo(model.getContext(List.of(1, 0, 20, 8, 5, 0, 3)));
+    }
+
+    @Test
+    public void transitionCache() {
+        solver.solve("<TRANSITION>", null);
+        long missCount = PregexSolver.transitionCacheStats().missCount();
+        solver.solve("<TRANSITION>", null);
+        assertThat(PregexSolver.transitionCacheStats().missCount()).isEqualTo(missCount);
+    }
+
+    @Test
+    public void resultCache() {
+        PregexResultCache resultCache = new PregexResultCache(10, Duration.ofMinutes(1), null);
+        PregexSolver cachingSolver = new PregexSolver(solver.model(), resultCache);
+        List<Result> results = cachingSolver.solve("<(AN)(SW)(ER)>", null);
+        assertThat(cachingSolver.solve("<(SW)(ER)(AN)>", null)).isEqualTo(results);
+        assertThat(resultCache.stats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void resultCacheSharedByParallelSearches() {
+        PregexResultCache resultCache = new PregexResultCache(10, Duration.ofMinutes(1), null);
+        PregexSolver cachingSolver = new PregexSolver(solver.model(), resultCache);
+        List<Result> results = cachingSolver.solve("<ANSWER>", null, new SearchParameters(4000, 100, false, 0, false));
+        assertThat(cachingSolver.solve("<ANSWER>", null, new SearchParameters(4000, 100, true, 0, false)))
+                .isEqualTo(results);
+        assertThat(resultCache.stats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void resultCacheCorruptFile() throws Exception {
+        File file = File.createTempFile("pregex-result-cache", ".json");
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "{not json");
+        PregexResultCache resultCache = new PregexResultCache(10, Duration.ofMinutes(1), file);
+        resultCache.load();
+        assertThat(resultCache.get("anything")).isNull();
+    }
+
+    @Test
+    public void listener() {
+        List<Result> reportedResults = new ArrayList<>();
+        AllResults results = solver.solve("ANSWRE", null, SearchParameters.DEFAULT, Budget.UNLIMITED, (result, rank) -> {
+            assertThat(rank).isBetween(1, reportedResults.size() + 1);
+            reportedResults.add(result);
+        });
+        assertThat(results.hitLimit()).isFalse();
+        assertThat(reportedResults).containsAll(results.results());
+    }
+
+    @Test
+    public void budget() {
+        AllResults results = solver.solve(
+                "<AADDDEGILNNOORRRRUU>",
+                null,
+                SearchParameters.DEFAULT,
+                new Budget(null, 1000, Integer.MAX_VALUE),
+                (result, rank) -> {});
+        assertThat(results.hitLimit()).isTrue();
+    }
+
+    @Test
+    public void searchParameters() {
+        List<Result> results = solver.solve(
+                "[AB][MN][RS][VW][DE][op]", null, new SearchParameters(100, 3, false, 0, false));
+        assertThat(results.size()).isLessThanOrEqualTo(3);
+        assertThat(results.get(0).message()).isEqualTo("ANSWER");
+    }
+}
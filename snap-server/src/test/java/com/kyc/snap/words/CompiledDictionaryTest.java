@@ -0,0 +1,49 @@
+package com.kyc.snap.words;
+
+import java.io.File;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class CompiledDictionaryTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        TreeMap<String, Long> wordFrequencies = new TreeMap<>();
+        wordFrequencies.put("A", 5L);
+        wordFrequencies.put("AN", 3L);
+        wordFrequencies.put("AND", 10L);
+        wordFrequencies.put("BE", 4L);
+        TreeMap<String, Long> nextWordFrequencies = new TreeMap<>();
+        nextWordFrequencies.put("ANT", 7L);
+        nextWordFrequencies.put("BE", 2L);
+        Map<String, SortedMap<String, Long>> biWordFrequencies = Map.of("A", nextWordFrequencies);
+
+        File file = File.createTempFile("dictionary", ".bin");
+        file.deleteOnExit();
+        CompiledDictionary.write(wordFrequencies, biWordFrequencies, file);
+        CompiledDictionary dictionary = CompiledDictionary.load(file);
+
+        assertThat(dictionary.getWordFrequencies())
+                .containsExactly(entry("A", 5L), entry("AN", 3L), entry("AND", 10L), entry("BE", 4L));
+        assertThat(dictionary.getWordFrequencies().get("ANT")).isNull();
+        assertThat(dictionary.getWordFrequencies("AN")).containsOnlyKeys("AN", "AND");
+        assertThat(dictionary.getBiWordFrequencies()).containsOnlyKeys("A");
+        assertThat(dictionary.getWordFrequencies("A", "")).containsExactly(entry("ANT", 7L), entry("BE", 2L));
+        assertThat(dictionary.getWordFrequencies("A", "B")).containsOnlyKeys("BE");
+        assertThat(dictionary.getWordFrequencies("BE", "")).isEmpty();
+        assertThat(dictionary.getWordFrequencies("C", "")).isEmpty();
+        assertThat(dictionary.getWordAndNextWordFrequencies()).containsExactly(
+                entry("A", 5L), entry("AN", 3L), entry("AND", 10L), entry("ANT", 0L), entry("BE", 4L));
+
+        double[] frequencies = new double[27];
+        dictionary.addNextLetterFrequencies(dictionary.wordId("A"), "", frequencies);
+        assertThat(frequencies[1]).isEqualTo(7);
+        assertThat(frequencies[2]).isEqualTo(2);
+    }
+}
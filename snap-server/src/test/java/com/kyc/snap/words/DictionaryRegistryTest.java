@@ -0,0 +1,48 @@
+package com.kyc.snap.words;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DictionaryRegistryTest {
+
+    @Test
+    public void testRegistry() {
+        Dictionary dictionary = new CustomDictionary(List.of("CAT"));
+        DictionaryRegistry registry = new DictionaryRegistry(Map.of("custom", () -> dictionary));
+
+        assertThat(registry.get("custom")).isSameAs(dictionary);
+        assertThatThrownBy(() -> registry.get("unknown")).isInstanceOf(IllegalArgumentException.class);
+        assertThat(registry.forWordBank(List.of("cat", "Dog"))).isSameAs(registry.forWordBank(Set.of("DOG", "c-a-t")));
+        assertThat(registry.forWordBank(List.of("cat")).getWords()).containsExactly("CAT");
+        assertThat(registry.isNamed(dictionary)).isTrue();
+        assertThat(registry.isNamed(registry.forWordBank(List.of("cat")))).isFalse();
+    }
+
+    @Test
+    public void testWarmUp() {
+        AtomicInteger numLoads = new AtomicInteger();
+        DictionaryRegistry registry = new DictionaryRegistry(Map.of(
+                "broken", () -> {
+                    throw new IllegalStateException("Missing data file");
+                },
+                "custom", () -> {
+                    numLoads.incrementAndGet();
+                    return new CustomDictionary(List.of("CAT"));
+                },
+                "lazy", () -> {
+                    throw new AssertionError("Not warmed up");
+                }));
+
+        registry.warmUp(List.of("broken", "custom", "unknown"));
+        registry.get("custom");
+        assertThat(numLoads).hasValue(1);
+        assertThatThrownBy(() -> registry.get("broken")).isInstanceOf(IllegalStateException.class);
+    }
+}
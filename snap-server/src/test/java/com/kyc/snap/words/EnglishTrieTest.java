@@ -0,0 +1,50 @@
+package com.kyc.snap.words;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class EnglishTrieTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        EnglishTrie trie = EnglishTrie.of(new CustomDictionary(List.of("AN", "AND", "ANT", "BEE")));
+
+        File file = File.createTempFile("trie", ".bin");
+        file.deleteOnExit();
+        trie.write(file);
+
+        for (EnglishTrie t : List.of(trie, EnglishTrie.load(file))) {
+            assertThat(t.getWords(find(t, "AND"))).containsExactly("AND");
+            assertThat(t.getWords(find(t, "AN"))).containsExactly("AN");
+            assertThat(t.getWords(find(t, "BE"))).isEmpty();
+            assertThat(t.getNumChildren(find(t, "AN"))).isEqualTo(2);
+            assertThat(t.getFirstChildIndex(find(t, "AN"))).isEqualTo(find(t, "AND"));
+            assertThat(find(t, "BEEF")).isEqualTo(EnglishTrie.NO_NODE);
+        }
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        File file = File.createTempFile("trie", ".bin");
+        file.deleteOnExit();
+        EnglishTrie.of(new CustomDictionary(List.of("AN", "AND", "ANT", "BEE"))).write(file);
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 1);
+        }
+
+        assertThatThrownBy(() -> EnglishTrie.load(file)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static int find(EnglishTrie trie, String s) {
+        int node = trie.startNodeIndex();
+        for (char c : s.toCharArray())
+            node = trie.getNodeIndex(node, c);
+        return node;
+    }
+}
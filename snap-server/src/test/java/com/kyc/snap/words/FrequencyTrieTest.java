@@ -0,0 +1,37 @@
+package com.kyc.snap.words;
+
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FrequencyTrieTest {
+
+    @Test
+    public void testNextLetterFrequencies() {
+        TreeMap<String, Long> wordFrequencies = new TreeMap<>();
+        wordFrequencies.put("A", 5L);
+        wordFrequencies.put("AN", 3L);
+        wordFrequencies.put("AND", 10L);
+        wordFrequencies.put("ANT", 2L);
+        wordFrequencies.put("AT", 1L);
+        wordFrequencies.put("BE", 4L);
+        wordFrequencies.put("DON'T", 100L);
+        FrequencyTrie trie = new FrequencyTrie(wordFrequencies);
+
+        int node = trie.find("AN");
+        assertThat(trie.wordFrequency(node)).isEqualTo(3);
+        assertThat(trie.totalFrequency(node)).isEqualTo(15);
+        assertThat(trie.totalFrequency(FrequencyTrie.ROOT)).isEqualTo(25);
+
+        double[] frequencies = new double[27];
+        trie.addNextLetterFrequencies(trie.find("A"), frequencies);
+        assertThat(frequencies[0]).isEqualTo(5);
+        assertThat(frequencies['N' - '@']).isEqualTo(15);
+        assertThat(frequencies['T' - '@']).isEqualTo(1);
+
+        assertThat(trie.find("ANY")).isEqualTo(FrequencyTrie.NONE);
+        assertThat(trie.find("DON")).isEqualTo(FrequencyTrie.NONE);
+    }
+}
@@ -4,7 +4,9 @@ import java.util.List;
 
 import org.junit.Test;
 
+import com.kyc.snap.words.WordSearchSolver.AllResults;
 import com.kyc.snap.words.WordSearchSolver.Result;
+import com.kyc.snap.words.WordSearchSolver.StepBudget;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -15,7 +17,7 @@ public class WordSearchSolverTest {
 
     @Test
     public void findStraight() {
-        assertThat(solver.find(List.of("ABC", "DEF", "GHI"), dictionary, false, List.of(3)).results())
+        assertThat(solver.find(List.of("ABC", "DEF", "GHI"), dictionary, false, List.of(3), false).results())
                 .extracting(Result::word)
                 .contains("FED")
                 .doesNotContain("BEG");
@@ -23,22 +25,88 @@ public class WordSearchSolverTest {
 
     @Test
     public void findBoggle() {
-        assertThat(solver.find(List.of("ABC", "DEF", "GHI"), dictionary, true, List.of(3)).results())
+        assertThat(solver.find(List.of("ABC", "DEF", "GHI"), dictionary, true, List.of(3), false).results())
                 .extracting(Result::word)
                 .contains("FED", "BEG");
     }
 
     @Test
     public void findFuzzy() {
-        assertThat(solver.find(List.of("AFB", "CUD", "EXF", "GZH", "IYJ"), dictionary, false, List.of(3, 5)).results())
+        assertThat(solver.find(List.of("AFB", "CUD", "EXF", "GZH", "IYJ"), dictionary, false, List.of(3, 5), false)
+                        .results())
                 .extracting(Result::word)
                 .contains("FUZZY");
     }
 
+    @Test
+    public void findFuzzyDistanceTwo() {
+        assertThat(solver.find(List.of("FXZZQ"), dictionary, false, List.of(3, 5, 5), false).results())
+                .filteredOn(result -> result.word().equals("FUZZY"))
+                .extracting(Result::levenshteinDistance)
+                .containsExactly(2);
+    }
+
     @Test
     public void findNotAlpha() {
-        assertThat(solver.find(List.of("ALPHA#"), dictionary, false, List.of(5)).results())
+        assertThat(solver.find(List.of("ALPHA#"), dictionary, false, List.of(5), false).results())
                 .extracting(Result::word)
                 .contains("ALPHA");
     }
+
+    @Test
+    public void findParallel() {
+        List<String> grid = List.of("THEDOGCAT", "OSTARBLUE", "WATERLINE", "PRICESAND", "GAMEBOOKS");
+        for (boolean boggle : List.of(false, true)) {
+            AllResults sequential = solver.find(grid, dictionary, boggle, List.of(4, 6), false);
+            AllResults parallel = solver.find(grid, dictionary, boggle, List.of(4, 6), true);
+            assertThat(parallel.results()).isNotEmpty().isEqualTo(sequential.results());
+            assertThat(parallel.hitLimit()).isFalse();
+        }
+    }
+
+    @Test
+    public void findHitLimit() {
+        List<String> grid = List.of("THEDOGCAT", "OSTARBLUE", "WATERLINE", "PRICESAND", "GAMEBOOKS");
+        WordSearchSolver limitedSolver = new WordSearchSolver(d -> false, 10000);
+        for (boolean parallel : List.of(false, true))
+            assertThat(limitedSolver.find(grid, dictionary, true, List.of(4, 6), parallel).hitLimit()).isTrue();
+    }
+
+    @Test
+    public void findParallelWithExactLimit() {
+        List<String> grid = List.of("THEDOGCAT", "OSTARBLUE", "WATERLINE", "PRICESAND", "GAMEBOOKS");
+        // the fewest steps that the sequential search needs
+        int minNumSteps = 10000;
+        int maxNumSteps = 10000000;
+        while (minNumSteps < maxNumSteps) {
+            int numSteps = (minNumSteps + maxNumSteps) / 2;
+            WordSearchSolver limitedSolver = new WordSearchSolver(d -> false, numSteps);
+            if (limitedSolver.find(grid, dictionary, true, List.of(4, 6), false).hitLimit())
+                minNumSteps = numSteps + 1;
+            else
+                maxNumSteps = numSteps;
+        }
+
+        WordSearchSolver limitedSolver = new WordSearchSolver(d -> false, minNumSteps);
+        AllResults sequential = limitedSolver.find(grid, dictionary, true, List.of(4, 6), false);
+        AllResults parallel = limitedSolver.find(grid, dictionary, true, List.of(4, 6), true);
+        assertThat(parallel.results()).isEqualTo(sequential.results());
+        assertThat(parallel.hitLimit()).isFalse();
+        assertThat(new WordSearchSolver(d -> false, minNumSteps - 1).find(grid, dictionary, true, List.of(4, 6), true)
+                .hitLimit()).isTrue();
+    }
+
+    @Test
+    public void stepBudgetTakesUnusedStepsOfOtherTasks() {
+        StepBudget budget = new StepBudget(1500);
+        StepBudget task1 = budget.forTask();
+        StepBudget task2 = budget.forTask();
+        assertThat(task1.takeStep()).isTrue();
+        for (int i = 0; i < 1499; i++)
+            assertThat(task2.takeStep()).isTrue();
+        assertThat(budget.hitLimit()).isFalse();
+
+        assertThat(task1.takeStep()).isFalse();
+        assertThat(budget.hitLimit()).isTrue();
+    }
 }